@@ -0,0 +1,164 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*; // For ThreadPoolExecutor
+import java.util.concurrent.atomic.*; // For the counters
+
+public class Acceptor implements Runnable {
+
+  /**
+   * Properties
+   */
+  private int id;
+  private WebProxy proxy;
+  private ServerSocket welcomeSocket;
+  private ThreadPoolExecutor workers;
+  private ProxyCache cache;
+  private CensorEngine censorEngine;
+  private AdmissionControl admission;
+  private UpstreamPool upstreams;
+  private OriginHealth health;
+  private int connectTimeout;
+  private int readTimeout;
+  private int clientReadTimeout;
+  private AccessLog accessLog;
+
+  // Counters for reporting
+  private final AtomicLong accepted;
+  private final AtomicInteger maxQueueDepth;
+  private long startedAt;
+
+  /**
+   * Constructor
+   * @param welcomeSocket Bound socket to accept on, may be shared with other acceptors
+   * @param maxExchanges Workers in this acceptor's group
+   * @param maxPending Connections this acceptor's group may queue
+   * @param connectTimeout Milliseconds to wait for an origin to accept a connect
+   * @param readTimeout Milliseconds to wait for an origin to send anything
+   * @param clientReadTimeout Milliseconds to wait for a client to send its request
+   */
+  public Acceptor(int id, WebProxy proxy, ServerSocket welcomeSocket,
+                  int maxExchanges, int maxPending,
+                  ProxyCache cache, CensorEngine engine,
+                  AdmissionControl admission, UpstreamPool upstreams,
+                  OriginHealth health, int connectTimeout,
+                  int readTimeout, int clientReadTimeout, AccessLog accessLog) {
+    this.id = id;
+    this.proxy = proxy;
+    this.welcomeSocket = welcomeSocket;
+    this.cache = cache;
+    this.censorEngine = engine;
+    this.admission = admission;
+    this.upstreams = upstreams;
+    this.health = health;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.clientReadTimeout = clientReadTimeout;
+    this.accessLog = accessLog;
+    // At most maxExchanges run at once, at most maxPending wait for a worker.
+    // Anything past that is rejected instead of queued indefinitely
+    this.workers = new ThreadPoolExecutor(maxExchanges, maxExchanges,
+                                          60L, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<Runnable>(maxPending));
+    this.workers.allowCoreThreadTimeOut(true);
+    this.accepted = new AtomicLong();
+    this.maxQueueDepth = new AtomicInteger();
+  }
+
+  /**
+   * Implementation of Runnable
+   */
+  public void run() {
+    this.startedAt = System.nanoTime();
+    // Keep listening for client connections
+    // Hand each one to this acceptor's worker group upon handshake
+    while (!this.proxy.isStopped()) {
+      Socket clientSocket = null;
+      try {
+        clientSocket = this.welcomeSocket.accept();
+      } catch (IOException e) {
+        if (!this.proxy.isStopped()) e.printStackTrace();
+        continue;
+      }
+      this.accepted.incrementAndGet();
+      try {
+        // A client that connects and sends nothing must not hold a worker for good
+        clientSocket.setSoTimeout(this.clientReadTimeout);
+      } catch (SocketException e) {
+        // Connection broke already, drop it
+        try {
+          clientSocket.close();
+        } catch (IOException e2) {
+          // Nothing else to do
+        }
+        continue;
+      }
+      try {
+        this.workers.execute(new ProxyRunnable(clientSocket,
+                                               this.cache,
+                                               this.censorEngine,
+                                               this.admission,
+                                               this.upstreams,
+                                               this.health,
+                                               this.connectTimeout,
+                                               this.readTimeout,
+                                               this.accessLog
+                                               ));
+      } catch (RejectedExecutionException e) {
+        shed(clientSocket);
+        continue;
+      }
+      // Sample the backlog right after each hand-off
+      int depth = this.workers.getQueue().size();
+      if (depth > this.maxQueueDepth.get()) this.maxQueueDepth.set(depth);
+    }
+  }
+
+  /**
+   * Answer an over-limit connection with a 503 and close it right away
+   */
+  private void shed(Socket clientSocket) {
+    this.admission.recordShedExchange();
+    // The request itself is never read, only who was turned away and when
+    AccessLog.Record record = new AccessLog.Record();
+    record.time = System.currentTimeMillis();
+    record.client = clientSocket.getInetAddress();
+    record.status = 503;
+    this.accessLog.append(record);
+    try {
+      Response.writeServiceUnavailable(clientSocket.getOutputStream());
+    } catch (IOException e) {
+      // Client is gone already, nothing else to do
+    } finally {
+      try {
+        clientSocket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Stop handing out work. Closing the socket is left to the owner,
+   * since it may be shared
+   */
+  public void shutdown() {
+    this.workers.shutdown();
+  }
+
+  /**
+   * Human readable summary of the counters
+   */
+  public String getStats() {
+    long count = this.accepted.get();
+    long elapsed = System.nanoTime() - this.startedAt;
+    long rate = elapsed <= 0 ? 0 : count * 1000000000L / elapsed;
+    StringBuilder sb = new StringBuilder();
+    sb.append("acceptor-").append(this.id);
+    sb.append(" accepted=").append(count);
+    sb.append(" accepts-per-sec=").append(rate);
+    sb.append(" queue-depth=").append(this.workers.getQueue().size());
+    sb.append(" queue-depth-max=").append(this.maxQueueDepth.get());
+    sb.append(" active=").append(this.workers.getActiveCount());
+    return sb.toString();
+  }
+}
@@ -0,0 +1,325 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*; // For StandardCharsets
+import java.util.concurrent.atomic.*; // For the sequences and counters
+import java.util.concurrent.locks.*; // For LockSupport
+
+/**
+ * Access log that stays off the request path. Exchanges copy their record
+ * into a preallocated ring and return; a single background thread formats
+ * the records and writes them out in batches, rotating the file by size.
+ * When the ring is full records are dropped and counted, never waited on.
+ *
+ * Lines are tab separated, see FIELDS. Times are in microseconds, the
+ * timestamp in epoch milliseconds, so the log can be replayed as traffic
+ */
+public class AccessLog {
+
+  /**
+   * Constants
+   */
+  private static final String FIELDS = "#Fields: time\tclient\tmethod\turi\tstatus\tcache\tbytes"
+      + "\tqueue-us\tread-us\tcache-us\tupstream-us\ttransfer-us\ttotal-us"
+      + "\tif-none-match\tif-modified-since";
+  private static final long IDLE_PARK = 2000000L; // In nanoseconds
+  private static final int BATCH = 512;           // Records per write
+
+  /**
+   * Types
+   */
+  public static enum CacheResult {
+    HIT,         // Served from memory without asking the origin
+    MISS,        // Fetched from the origin
+    STALE,       // Served from disk, the origin could not be asked
+    REVALIDATED  // Served from disk after the origin answered 304
+  }
+
+  /**
+   * One exchange. Used both as the ring's preallocated slots and as the
+   * scratch record an exchange fills in before handing it to append()
+   */
+  public static class Record {
+    long time; // Epoch milliseconds the exchange was accepted at
+    InetAddress client;
+    String method;
+    String uri;
+    int status;
+    CacheResult cache;
+    long bytes;
+    // Phases, in nanoseconds
+    long queue;
+    long read;
+    long lookup;
+    long upstream;
+    long transfer;
+    long total;
+    // Conditional headers, so replayed requests revalidate the same way
+    String ifNoneMatch;
+    String ifModifiedSince;
+
+    // Sequence of the record in this slot, published last
+    private volatile long sequence = -1;
+
+    private void copyFrom(Record r) {
+      this.time = r.time;
+      this.client = r.client;
+      this.method = r.method;
+      this.uri = r.uri;
+      this.status = r.status;
+      this.cache = r.cache;
+      this.bytes = r.bytes;
+      this.queue = r.queue;
+      this.read = r.read;
+      this.lookup = r.lookup;
+      this.upstream = r.upstream;
+      this.transfer = r.transfer;
+      this.total = r.total;
+      this.ifNoneMatch = r.ifNoneMatch;
+      this.ifModifiedSince = r.ifModifiedSince;
+    }
+
+    private void clear() {
+      // Don't keep request strings alive while the slot waits for reuse
+      this.client = null;
+      this.method = null;
+      this.uri = null;
+      this.ifNoneMatch = null;
+      this.ifModifiedSince = null;
+    }
+  }
+
+  /**
+   * Properties
+   */
+  private final String path;
+  private final long maxFileSize;
+  private final int keepFiles;
+
+  // Ring of preallocated slots, producers claim with tail, the writer frees with head
+  private final Record[] ring;
+  private final int mask;
+  private final AtomicLong tail;
+  private volatile long head;
+
+  private Thread writer;
+  private volatile boolean closed;
+  private OutputStream out;
+  private long fileSize;
+
+  // Counters for reporting
+  private final AtomicLong dropped;
+  private long written;   // Only touched by the writer thread
+  private long rotations; // Only touched by the writer thread
+
+  /**
+   * Constructor
+   * @param path File to write to, null disables the log
+   * @param capacity Records the ring holds, rounded up to a power of two
+   * @param maxFileSize Bytes after which the file is rotated
+   * @param keepFiles Rotated files kept, as path.1 up to path.keepFiles
+   */
+  public AccessLog(String path, int capacity, long maxFileSize, int keepFiles) {
+    this.path = path;
+    this.maxFileSize = maxFileSize;
+    this.keepFiles = Math.max(0, keepFiles);
+    int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+    this.ring = new Record[path == null ? 0 : size];
+    for (int i = 0; i < this.ring.length; i++) this.ring[i] = new Record();
+    this.mask = size - 1;
+    this.tail = new AtomicLong();
+    this.dropped = new AtomicLong();
+  }
+
+  /**
+   * Read the settings from system properties, see WebProxy for the names
+   */
+  public static AccessLog fromSystemProperties() {
+    String path = System.getProperty("proxy.accessLog", "access.log");
+    return new AccessLog(path.isEmpty() ? null : path,
+                         Integer.getInteger("proxy.accessLog.bufferSize", 8192),
+                         Long.getLong("proxy.accessLog.maxFileSize", 64L * 1024 * 1024),
+                         Integer.getInteger("proxy.accessLog.keepFiles", 5));
+  }
+
+  public boolean isEnabled() { return this.path != null; }
+
+  /**
+   * Start the writer thread
+   */
+  public void start() {
+    if (!isEnabled() || this.writer != null) return;
+    this.writer = new Thread() {
+      public void run() { drainLoop(); }
+    };
+    this.writer.setName("access-log");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Queue a record for writing. Never blocks: if the writer has fallen
+   * a whole ring behind, the record is dropped and counted instead
+   */
+  public void append(Record r) {
+    if (!isEnabled() || this.closed) return;
+    long seq;
+    do {
+      seq = this.tail.get();
+      if (seq - this.head >= this.ring.length) {
+        this.dropped.incrementAndGet();
+        return;
+      }
+    } while (!this.tail.compareAndSet(seq, seq + 1));
+    Record slot = this.ring[(int) seq & this.mask];
+    slot.copyFrom(r);
+    // Publishing the sequence hands the slot to the writer
+    slot.sequence = seq;
+  }
+
+  /**
+   * Stop the writer after it has written out what is queued
+   */
+  public void close() {
+    if (!isEnabled() || this.closed) return;
+    this.closed = true;
+    if (this.writer == null) return;
+    LockSupport.unpark(this.writer);
+    try {
+      this.writer.join(2000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Body of the writer thread
+   */
+  private void drainLoop() {
+    StringBuilder sb = new StringBuilder(BATCH * 160);
+    long reportedDrops = 0;
+    try {
+      open();
+      while (true) {
+        // Checked before draining, so the last pass after close() sees everything
+        boolean last = this.closed;
+        int n = 0;
+        long seq = this.head;
+        Record slot;
+        while (n < BATCH && (slot = this.ring[(int) seq & this.mask]).sequence == seq) {
+          format(slot, sb);
+          slot.clear();
+          this.head = ++seq;
+          n++;
+        }
+        long drops = this.dropped.get();
+        if (drops != reportedDrops) {
+          // Leave a trace in the file itself, so replays know the log has gaps
+          sb.append("#Dropped: ").append(drops - reportedDrops).append('\n');
+          reportedDrops = drops;
+        }
+        if (sb.length() > 0) {
+          write(sb);
+          sb.setLength(0);
+          this.written += n;
+        }
+        if (n == BATCH) continue;
+        if (last) break;
+        LockSupport.parkNanos(IDLE_PARK);
+      }
+    } catch (IOException e) {
+      // Logging must never take the proxy down, stop taking records instead
+      e.printStackTrace();
+      this.closed = true;
+    } finally {
+      try {
+        if (this.out != null) this.out.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void write(StringBuilder sb) throws IOException {
+    // Requests are parsed as Latin-1, writing them back the same way is lossless
+    byte[] b = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    this.out.write(b);
+    this.out.flush();
+    this.fileSize += b.length;
+    if (this.fileSize >= this.maxFileSize) rotate();
+  }
+
+  private void open() throws IOException {
+    File f = new File(this.path);
+    this.out = new BufferedOutputStream(new FileOutputStream(f, true), 65536);
+    this.fileSize = f.length();
+    if (this.fileSize == 0) {
+      byte[] b = (FIELDS + "\n").getBytes(StandardCharsets.ISO_8859_1);
+      this.out.write(b);
+      this.fileSize = b.length;
+    }
+  }
+
+  /**
+   * Shift path.N to path.N+1, dropping the oldest, and start a new file
+   */
+  private void rotate() throws IOException {
+    this.out.close();
+    this.out = null;
+    if (this.keepFiles == 0) {
+      new File(this.path).delete();
+    } else {
+      new File(this.path + "." + this.keepFiles).delete();
+      for (int i = this.keepFiles - 1; i >= 1; i--) {
+        new File(this.path + "." + i).renameTo(new File(this.path + "." + (i + 1)));
+      }
+      new File(this.path).renameTo(new File(this.path + ".1"));
+    }
+    this.rotations++;
+    open();
+  }
+
+  private static void format(Record r, StringBuilder sb) {
+    sb.append(r.time).append('\t');
+    field(sb, r.client == null ? null : r.client.getHostAddress()).append('\t');
+    field(sb, r.method).append('\t');
+    field(sb, r.uri).append('\t');
+    sb.append(r.status).append('\t');
+    field(sb, r.cache == null ? null : r.cache.name()).append('\t');
+    sb.append(r.bytes).append('\t');
+    sb.append(r.queue / 1000).append('\t');
+    sb.append(r.read / 1000).append('\t');
+    sb.append(r.lookup / 1000).append('\t');
+    sb.append(r.upstream / 1000).append('\t');
+    sb.append(r.transfer / 1000).append('\t');
+    sb.append(r.total / 1000).append('\t');
+    field(sb, r.ifNoneMatch).append('\t');
+    field(sb, r.ifModifiedSince).append('\n');
+  }
+
+  /**
+   * Missing values become "-", tabs and line breaks become spaces
+   * so every record stays on one line with the same columns
+   */
+  private static StringBuilder field(StringBuilder sb, String value) {
+    if (value == null || value.isEmpty()) return sb.append('-');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      sb.append(c == '\t' || c == '\r' || c == '\n' ? ' ' : c);
+    }
+    return sb;
+  }
+
+  /**
+   * Human readable summary of the counters.
+   * The writer's counters are read without synchronization, good enough for reporting
+   */
+  public String getStats() {
+    if (!isEnabled()) return "disabled";
+    StringBuilder sb = new StringBuilder();
+    sb.append("written=").append(this.written);
+    sb.append(" dropped=").append(this.dropped.get());
+    sb.append(" queued=").append(this.tail.get() - this.head);
+    sb.append(" rotations=").append(this.rotations);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,93 @@
+import java.util.concurrent.*; // For ConcurrentHashMap and Semaphore
+import java.util.concurrent.atomic.*; // For AtomicLong
+
+public class AdmissionControl {
+
+  /**
+   * Properties
+   */
+  private final int maxConnectsPerOrigin;
+  private ConcurrentHashMap<String, Semaphore> connectPermits;
+
+  // Counters for reporting
+  private final AtomicLong admitted;
+  private final AtomicLong shedExchanges;
+  private final AtomicLong shedConnects;
+  private final AtomicLong queueWaitTotal; // In nanoseconds
+  private final AtomicLong queueWaitMax;   // In nanoseconds
+
+  /**
+   * Constructor
+   * @param maxConnectsPerOrigin Maximum concurrent upstream connects to a single origin
+   */
+  public AdmissionControl(int maxConnectsPerOrigin) {
+    this.maxConnectsPerOrigin = maxConnectsPerOrigin;
+    this.connectPermits = new ConcurrentHashMap<String, Semaphore>();
+    this.admitted = new AtomicLong();
+    this.shedExchanges = new AtomicLong();
+    this.shedConnects = new AtomicLong();
+    this.queueWaitTotal = new AtomicLong();
+    this.queueWaitMax = new AtomicLong();
+  }
+
+  /**
+   * Try to take a connect permit for the origin.
+   * Never blocks, returns false if the origin is at its limit.
+   */
+  public boolean tryAcquireConnect(String origin) {
+    Semaphore permits = this.connectPermits.get(origin);
+    if (permits == null) {
+      Semaphore fresh = new Semaphore(this.maxConnectsPerOrigin);
+      permits = this.connectPermits.putIfAbsent(origin, fresh);
+      if (permits == null) permits = fresh;
+    }
+    if (permits.tryAcquire()) return true;
+    this.shedConnects.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Give back a permit taken by tryAcquireConnect
+   */
+  public void releaseConnect(String origin) {
+    Semaphore permits = this.connectPermits.get(origin);
+    if (permits != null) permits.release();
+  }
+
+  /**
+   * Record an exchange rejected at the accept loop
+   */
+  public void recordShedExchange() {
+    this.shedExchanges.incrementAndGet();
+  }
+
+  /**
+   * Record how long an admitted exchange waited in the pending queue
+   */
+  public void recordQueueWait(long nanos) {
+    this.admitted.incrementAndGet();
+    this.queueWaitTotal.addAndGet(nanos);
+    long max;
+    while (nanos > (max = this.queueWaitMax.get())) {
+      if (this.queueWaitMax.compareAndSet(max, nanos)) break;
+    }
+  }
+
+  public long getShedExchanges() { return this.shedExchanges.get(); }
+  public long getShedConnects()  { return this.shedConnects.get(); }
+
+  /**
+   * Human readable summary of the counters
+   */
+  public String getStats() {
+    long count = this.admitted.get();
+    long avgMicros = count == 0 ? 0 : this.queueWaitTotal.get() / count / 1000;
+    StringBuilder sb = new StringBuilder();
+    sb.append("admitted=").append(count);
+    sb.append(" shed-exchanges=").append(this.shedExchanges.get());
+    sb.append(" shed-connects=").append(this.shedConnects.get());
+    sb.append(" queue-wait-avg-us=").append(avgMicros);
+    sb.append(" queue-wait-max-us=").append(this.queueWaitMax.get() / 1000);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,160 @@
+import java.io.*;
+
+/**
+ * Reads exactly one message body off a connection, according to its framing.
+ * Chunked bodies come out de-chunked, and reading stops at the end of the
+ * message instead of at EOF, so the connection can carry another message.
+ * Memory use is constant whatever the body size
+ */
+public class BodyInputStream extends InputStream {
+
+  /**
+   * Types
+   */
+  public static enum Framing {
+    NONE,          // No body at all, e.g. 304 or a reply to HEAD
+    CONTENT_LENGTH,
+    CHUNKED,
+    UNTIL_CLOSE    // HTTP/1.0 style, the body ends when the origin closes
+  }
+
+  /**
+   * Properties
+   */
+  private Framing framing;
+  private InputStream source;
+  // Body bytes that were read along with the header
+  private byte[] pre;
+  private int prePos;
+  private int preEnd;
+
+  private long remaining;   // Left in the body, or in the current chunk
+  private boolean complete; // The whole message has been consumed
+
+  /**
+   * Constructor
+   * @param framing How the end of the body is found
+   * @param contentLength Body length for CONTENT_LENGTH, ignored otherwise
+   * @param pre Buffer holding body bytes read together with the header
+   * @param off Offset of the first body byte in pre
+   * @param len Number of body bytes in pre
+   * @param source Connection to read the rest from
+   */
+  public BodyInputStream(Framing framing, long contentLength,
+                         byte[] pre, int off, int len, InputStream source) {
+    this.framing = framing;
+    this.source = source;
+    this.pre = pre;
+    this.prePos = off;
+    this.preEnd = off + len;
+    this.remaining = framing == Framing.CONTENT_LENGTH ? contentLength : 0;
+    this.complete = framing == Framing.NONE
+        || (framing == Framing.CONTENT_LENGTH && contentLength <= 0);
+  }
+
+  /**
+   * @return {boolean} true once the body has been read up to its end,
+   *         by its framing rather than by the connection closing
+   */
+  public boolean isComplete() {
+    return this.complete && this.framing != Framing.UNTIL_CLOSE;
+  }
+
+  /**
+   * Bytes read along with the header but beyond the end of this message.
+   * Anything here means the connection cannot be reused safely
+   */
+  public int leftover() {
+    return this.complete ? this.preEnd - this.prePos : 0;
+  }
+
+  public int read() throws IOException {
+    byte[] one = new byte[1];
+    return read(one, 0, 1) <= 0 ? -1 : one[0] & 0xff;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (this.complete) return -1;
+    switch (this.framing) {
+      case CONTENT_LENGTH: {
+        int n = readRaw(b, off, (int) Math.min(len, this.remaining));
+        if (n < 0) throw new EOFException("Connection closed before end of body");
+        if ((this.remaining -= n) == 0) this.complete = true;
+        return n;
+      }
+      case CHUNKED: {
+        if (this.remaining == 0) {
+          // Next chunk, a zero sized one ends the body
+          if ((this.remaining = readChunkSize()) == 0) {
+            readTrailers();
+            this.complete = true;
+            return -1;
+          }
+        }
+        int n = readRaw(b, off, (int) Math.min(len, this.remaining));
+        if (n < 0) throw new EOFException("Connection closed inside a chunk");
+        if ((this.remaining -= n) == 0) readLine(); // CRLF after the chunk data
+        return n;
+      }
+      default: {
+        int n = readRaw(b, off, len);
+        if (n < 0) this.complete = true;
+        return n;
+      }
+    }
+  }
+
+  /**
+   * Read from the bytes left over from the header first, then the connection
+   */
+  private int readRaw(byte[] b, int off, int len) throws IOException {
+    if (this.prePos < this.preEnd) {
+      int n = Math.min(len, this.preEnd - this.prePos);
+      System.arraycopy(this.pre, this.prePos, b, off, n);
+      this.prePos += n;
+      return n;
+    }
+    return this.source.read(b, off, len);
+  }
+
+  private int readRawByte() throws IOException {
+    if (this.prePos < this.preEnd) return this.pre[this.prePos++] & 0xff;
+    return this.source.read();
+  }
+
+  /**
+   * Chunk size line: hex digits, optionally followed by ;extensions
+   */
+  private long readChunkSize() throws IOException {
+    String line = readLine();
+    int semi = line.indexOf(';');
+    if (semi >= 0) line = line.substring(0, semi);
+    try {
+      long size = Long.parseLong(line.trim(), 16);
+      if (size < 0) throw new NumberFormatException();
+      return size;
+    } catch (NumberFormatException e) {
+      throw new IOException("Malformed chunk size: " + line);
+    }
+  }
+
+  private void readTrailers() throws IOException {
+    while (!readLine().isEmpty());
+  }
+
+  /**
+   * Read one CRLF terminated line. Only used for chunk framing,
+   * which is short, so a StringBuilder is fine here
+   */
+  private String readLine() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = readRawByte()) != '\n') {
+      if (c < 0) throw new EOFException("Connection closed inside chunk framing");
+      if (c != '\r') sb.append((char) c);
+      if (sb.length() > 4096) throw new IOException("Chunk framing line too long");
+    }
+    return sb.toString();
+  }
+}
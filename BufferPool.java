@@ -0,0 +1,304 @@
+import java.io.*;
+import java.util.concurrent.*; // For ConcurrentLinkedQueue and ConcurrentHashMap
+import java.util.concurrent.atomic.*; // For the counters
+
+public class BufferPool {
+
+  /**
+   * Constants
+   */
+  // Size classes, a request is served from the smallest class that fits
+  private static final int[] SIZE_CLASSES = { 512, 8192, 65536 };
+  // Bound on the number of idle buffers kept per class
+  private static final int[] MAX_RETAINED = { 1024, 512, 32 };
+  // Leak tracking costs a stack trace per borrow, so it is opt-in
+  private static final boolean DEBUG = Boolean.getBoolean("proxy.bufferPool.debug");
+
+  private static final BufferPool SHARED = new BufferPool();
+
+  /**
+   * Properties
+   */
+  private ConcurrentLinkedQueue<byte[]>[] free;
+  private AtomicInteger[] retained;
+  private ConcurrentHashMap<byte[], Throwable> outstanding;
+
+  private final AtomicLong borrows;
+  private final AtomicLong allocations;
+  private final AtomicLong discards;
+
+  /**
+   * Private constructor, use the shared instance
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private BufferPool() {
+    this.free = new ConcurrentLinkedQueue[SIZE_CLASSES.length];
+    this.retained = new AtomicInteger[SIZE_CLASSES.length];
+    for (int i = 0; i < SIZE_CLASSES.length; i++) {
+      this.free[i] = new ConcurrentLinkedQueue<byte[]>();
+      this.retained[i] = new AtomicInteger();
+    }
+    // Arrays use identity equality, so they can key the map directly
+    this.outstanding = DEBUG ? new ConcurrentHashMap<byte[], Throwable>() : null;
+    this.borrows = new AtomicLong();
+    this.allocations = new AtomicLong();
+    this.discards = new AtomicLong();
+  }
+
+  public static BufferPool get() { return SHARED; }
+
+  /**
+   * Convenient static accessors for the shared pool
+   */
+  public static byte[] acquire(int size) { return SHARED.borrow(size); }
+  public static void release(byte[] buffer) { SHARED.giveBack(buffer); }
+
+  /**
+   * Borrow a buffer at least size bytes long.
+   * Sizes above the largest class are allocated and never retained
+   */
+  public byte[] borrow(int size) {
+    this.borrows.incrementAndGet();
+    int sc = sizeClass(size);
+    byte[] b = null;
+    if (sc >= 0 && (b = this.free[sc].poll()) != null) {
+      this.retained[sc].decrementAndGet();
+    } else {
+      this.allocations.incrementAndGet();
+      b = new byte[sc >= 0 ? SIZE_CLASSES[sc] : size];
+    }
+    if (DEBUG) this.outstanding.put(b, new Throwable("Buffer borrowed here"));
+    return b;
+  }
+
+  /**
+   * Return a borrowed buffer. The caller must not touch it afterwards
+   */
+  public void giveBack(byte[] b) {
+    if (b == null) return;
+    if (DEBUG && this.outstanding.remove(b) == null) {
+      (new Throwable("Buffer returned twice or not borrowed from pool")).printStackTrace();
+      return;
+    }
+    int sc = sizeClass(b.length);
+    // Only exact class sizes go back, odd sizes are left to the GC
+    if (sc < 0 || SIZE_CLASSES[sc] != b.length) return;
+    if (this.retained[sc].incrementAndGet() > MAX_RETAINED[sc]) {
+      this.retained[sc].decrementAndGet();
+      this.discards.incrementAndGet();
+      return;
+    }
+    this.free[sc].offer(b);
+  }
+
+  private static int sizeClass(int size) {
+    for (int i = 0; i < SIZE_CLASSES.length; i++) {
+      if (size <= SIZE_CLASSES[i]) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Print where every buffer still on loan was borrowed.
+   * Only available in debug mode
+   */
+  public void reportLeaks() {
+    if (!DEBUG) return;
+    for (Throwable site : this.outstanding.values()) site.printStackTrace();
+  }
+
+  /**
+   * Human readable summary of the counters
+   */
+  public String getStats() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("borrows=").append(this.borrows.get());
+    sb.append(" allocations=").append(this.allocations.get());
+    sb.append(" discards=").append(this.discards.get());
+    for (int i = 0; i < SIZE_CLASSES.length; i++) {
+      sb.append(" idle-").append(SIZE_CLASSES[i]).append("=").append(this.retained[i].get());
+    }
+    if (DEBUG) sb.append(" outstanding=").append(this.outstanding.size());
+    return sb.toString();
+  }
+
+  /**
+   * Buffered input stream whose buffer is borrowed from the pool.
+   * The buffer is owned here rather than swapped into a BufferedInputStream,
+   * whose internals differ between JDK versions.
+   * The buffer goes back to the pool when the stream is closed
+   */
+  public static class PooledInputStream extends FilterInputStream {
+    private byte[] buf;
+    private int pos;   // Next byte to hand out
+    private int count; // End of the valid bytes in buf
+
+    public PooledInputStream(InputStream in) {
+      super(in);
+      this.buf = acquire(8192);
+    }
+
+    public synchronized int read() throws IOException {
+      ensureOpen();
+      if (this.pos >= this.count && fill() <= 0) return -1;
+      return this.buf[this.pos++] & 0xff;
+    }
+
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      ensureOpen();
+      if (len == 0) return 0;
+      if (this.pos >= this.count) {
+        // Nothing buffered and a large read, skip the copy
+        if (len >= this.buf.length) return this.in.read(b, off, len);
+        if (fill() <= 0) return -1;
+      }
+      int n = Math.min(len, this.count - this.pos);
+      System.arraycopy(this.buf, this.pos, b, off, n);
+      this.pos += n;
+      return n;
+    }
+
+    public synchronized long skip(long n) throws IOException {
+      ensureOpen();
+      if (n <= 0) return 0;
+      int buffered = this.count - this.pos;
+      if (buffered <= 0) return this.in.skip(n);
+      long k = Math.min(n, buffered);
+      this.pos += (int) k;
+      return k;
+    }
+
+    public synchronized int available() throws IOException {
+      ensureOpen();
+      return (this.count - this.pos) + this.in.available();
+    }
+
+    public boolean markSupported() { return false; }
+
+    public void mark(int readlimit) {}
+
+    public void reset() throws IOException {
+      throw new IOException("mark/reset not supported");
+    }
+
+    public synchronized void close() throws IOException {
+      if (this.buf == null) return;
+      byte[] b = this.buf;
+      this.buf = null;
+      try {
+        if (this.in != null) this.in.close();
+      } finally {
+        release(b);
+      }
+    }
+
+    /**
+     * Give the buffer back without closing the underlying stream,
+     * so the connection can be used again by someone else.
+     * @return {boolean} false, and nothing is done, if bytes are still buffered
+     */
+    public synchronized boolean detach() {
+      if (this.buf == null || this.pos < this.count) return false;
+      byte[] b = this.buf;
+      this.in = null;
+      this.buf = null;
+      release(b);
+      return true;
+    }
+
+    private int fill() throws IOException {
+      this.pos = 0;
+      this.count = 0;
+      int n = this.in.read(this.buf, 0, this.buf.length);
+      if (n > 0) this.count = n;
+      return n;
+    }
+
+    private void ensureOpen() throws IOException {
+      if (this.buf == null) throw new IOException("Stream closed");
+    }
+  }
+
+  /**
+   * Buffered output stream whose buffer is borrowed from the pool.
+   * The buffer goes back to the pool when the stream is closed,
+   * later writes fail instead of touching the returned buffer
+   */
+  public static class PooledOutputStream extends FilterOutputStream {
+    private byte[] buf;
+    private int count; // Bytes waiting in buf
+
+    public PooledOutputStream(OutputStream out) {
+      super(out);
+      this.buf = acquire(8192);
+    }
+
+    public synchronized void write(int b) throws IOException {
+      ensureOpen();
+      if (this.count >= this.buf.length) flushBuffer();
+      this.buf[this.count++] = (byte) b;
+    }
+
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      ensureOpen();
+      if (len >= this.buf.length) {
+        // Too large to be worth copying, write it straight through
+        flushBuffer();
+        this.out.write(b, off, len);
+        return;
+      }
+      if (len > this.buf.length - this.count) flushBuffer();
+      System.arraycopy(b, off, this.buf, this.count, len);
+      this.count += len;
+    }
+
+    public synchronized void flush() throws IOException {
+      ensureOpen();
+      flushBuffer();
+      this.out.flush();
+    }
+
+    public synchronized void close() throws IOException {
+      if (this.buf == null) return;
+      try {
+        flushBuffer();
+        this.out.flush();
+      } finally {
+        byte[] b = this.buf;
+        this.buf = null;
+        try {
+          this.out.close();
+        } finally {
+          release(b);
+        }
+      }
+    }
+
+    /**
+     * Flush and give the buffer back without closing the underlying stream,
+     * so the connection can be used again by someone else
+     */
+    public synchronized void detach() throws IOException {
+      if (this.buf == null) return;
+      try {
+        flushBuffer();
+        this.out.flush();
+      } finally {
+        byte[] b = this.buf;
+        this.buf = null;
+        release(b);
+      }
+    }
+
+    private void flushBuffer() throws IOException {
+      if (this.count > 0) {
+        this.out.write(this.buf, 0, this.count);
+        this.count = 0;
+      }
+    }
+
+    private void ensureOpen() throws IOException {
+      if (this.buf == null) throw new IOException("Stream closed");
+    }
+  }
+}
@@ -0,0 +1,108 @@
+public final class CacheKey {
+
+  /**
+   * Constants
+   * MurmurHash3 x64 128-bit mixing constants
+   */
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Properties
+   */
+  public final long high;
+  public final long low;
+
+  private CacheKey(long high, long low) {
+    this.high = high;
+    this.low = low;
+  }
+
+  /**
+   * Hash a URI into a 128-bit key.
+   * MurmurHash3 x64 128 run over the UTF-16 chars of the string directly,
+   * so no byte array is needed. Not cryptographic: two URIs can collide,
+   * which is why cached content still checks the URI it was stored for
+   */
+  public static CacheKey of(String s) {
+    final int len = s.length();
+    final int nblocks = len / 8; // 8 chars = 16 bytes per block
+    long h1 = 0;
+    long h2 = 0;
+
+    // Body
+    for (int i = 0; i < nblocks; i++) {
+      int p = i * 8;
+      long k1 = chars(s, p);
+      long k2 = chars(s, p + 4);
+
+      k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+      h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+      k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+      h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    // Tail, up to 7 chars left
+    int p = nblocks * 8;
+    long k1 = 0;
+    long k2 = 0;
+    for (int i = len - 1; i >= p + 4; i--) k2 = (k2 << 16) | s.charAt(i);
+    for (int i = Math.min(len, p + 4) - 1; i >= p; i--) k1 = (k1 << 16) | s.charAt(i);
+    if (len > p + 4) { k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2; }
+    if (len > p) { k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1; }
+
+    // Finalization
+    h1 ^= len * 2L;
+    h2 ^= len * 2L;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+    return new CacheKey(h1, h2);
+  }
+
+  // Four chars packed little-endian into a long
+  private static long chars(String s, int p) {
+    return (long) s.charAt(p)
+         | (long) s.charAt(p + 1) << 16
+         | (long) s.charAt(p + 2) << 32
+         | (long) s.charAt(p + 3) << 48;
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof CacheKey)) return false;
+    CacheKey k = (CacheKey) o;
+    return this.high == k.high && this.low == k.low;
+  }
+
+  public int hashCode() {
+    // Bits are already well mixed, any 32 of them will do
+    return (int) this.low;
+  }
+
+  /**
+   * 32 hex digits, used as the cache file name
+   */
+  public String toString() {
+    char[] c = new char[32];
+    for (int i = 0; i < 16; i++) {
+      c[15 - i] = HEX[(int) (this.high >>> (i * 4)) & 0xf];
+      c[31 - i] = HEX[(int) (this.low >>> (i * 4)) & 0xf];
+    }
+    return new String(c);
+  }
+}
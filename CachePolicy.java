@@ -0,0 +1,18 @@
+/**
+ * Decides whether a response is worth writing to the cache.
+ * Asked once per exchange, after the response header is parsed
+ * and before any byte goes to disk
+ */
+public interface CachePolicy {
+
+  /**
+   * @return {boolean} true if the response to this request should be stored
+   */
+  boolean isCacheable(Request request, Response response);
+
+  /**
+   * @return {long} Largest object, in bytes, worth storing. Bodies that grow
+   *         past this while streaming are dropped from the cache
+   */
+  long getMaxObjectSize();
+}
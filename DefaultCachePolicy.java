@@ -0,0 +1,99 @@
+import java.util.*;
+import java.util.regex.*; // For Pattern
+
+public class DefaultCachePolicy implements CachePolicy {
+
+  /**
+   * Constants
+   */
+  private static final long DEFAULT_MAX_OBJECT_SIZE = 16L * 1024 * 1024;
+  // Statuses that may be stored without explicit freshness info
+  private static final Set<Integer> CACHEABLE_STATUS =
+      new HashSet<Integer>(Arrays.asList(200, 203, 300, 301, 410));
+
+  /**
+   * Properties
+   */
+  private long maxObjectSize;
+  private Pattern bypassUrls;  // URIs matching this are never stored
+  private Pattern bypassTypes; // Content types matching this are never stored
+
+  /**
+   * Constructor
+   * @param maxObjectSize Largest object worth storing, in bytes
+   * @param bypassUrls Regex of URIs never to store, may be null
+   * @param bypassTypes Regex of content types never to store, may be null
+   */
+  public DefaultCachePolicy(long maxObjectSize, String bypassUrls, String bypassTypes) {
+    this.maxObjectSize = maxObjectSize;
+    this.bypassUrls = bypassUrls == null ? null : Pattern.compile(bypassUrls);
+    this.bypassTypes = bypassTypes == null ? null : Pattern.compile(bypassTypes, Pattern.CASE_INSENSITIVE);
+  }
+
+  /**
+   * Policy configured from system properties:
+   * proxy.cache.maxObjectSize, proxy.cache.bypassUrls, proxy.cache.bypassTypes
+   */
+  public static DefaultCachePolicy fromSystemProperties() {
+    return new DefaultCachePolicy(Long.getLong("proxy.cache.maxObjectSize", DEFAULT_MAX_OBJECT_SIZE),
+                                  System.getProperty("proxy.cache.bypassUrls"),
+                                  System.getProperty("proxy.cache.bypassTypes"));
+  }
+
+  public boolean isCacheable(Request request, Response response) {
+    // Only plain GETs have a body worth replaying
+    if (!"GET".equals(request.get(Request.Field.METHOD))) return false;
+    if (!CACHEABLE_STATUS.contains(response.getStatusCode())) return false;
+
+    // Directives forbidding a shared cache to store the response
+    String requestCC = request.getHeader("Cache-Control");
+    if (requestCC != null && hasDirective(requestCC, "no-store")) return false;
+    String responseCC = response.getHeader("Cache-Control");
+    if (responseCC != null && (hasDirective(responseCC, "no-store")
+                               || hasDirective(responseCC, "private"))) return false;
+    // Authorized responses are per user unless explicitly public
+    if (request.getHeader("Authorization") != null
+        && (responseCC == null || !hasDirective(responseCC, "public"))) return false;
+    // Per user as well, and replaying it would leak the cookie
+    if (response.getHeader("Set-Cookie") != null) return false;
+
+    // Varies on something other than request headers
+    String vary = response.getHeader("Vary");
+    if (vary != null && vary.trim().equals("*")) return false;
+
+    // Known to be too big up front
+    String contentLength = response.getHeader("Content-Length");
+    if (contentLength != null) {
+      try {
+        if (Long.parseLong(contentLength.trim()) > this.maxObjectSize) return false;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+
+    // Configured rules
+    if (this.bypassUrls != null
+        && this.bypassUrls.matcher(request.get(Request.Field.URI)).find()) return false;
+    String contentType = response.getHeader("Content-Type");
+    if (this.bypassTypes != null && contentType != null
+        && this.bypassTypes.matcher(contentType).find()) return false;
+
+    return true;
+  }
+
+  public long getMaxObjectSize() { return this.maxObjectSize; }
+
+  /**
+   * Check a comma separated Cache-Control value for a directive,
+   * ignoring any =argument it carries
+   */
+  private static boolean hasDirective(String cacheControl, String directive) {
+    for (String part : cacheControl.split(",")) {
+      String name = part.trim();
+      int eq = name.indexOf('=');
+      if (eq >= 0) name = name.substring(0, eq).trim();
+      if (name.equalsIgnoreCase(directive)) return true;
+    }
+    return false;
+  }
+}
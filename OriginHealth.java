@@ -0,0 +1,132 @@
+import java.util.concurrent.*; // For ConcurrentHashMap
+import java.util.concurrent.atomic.*; // For the counters
+
+public class OriginHealth {
+
+  /**
+   * Types
+   */
+  public static enum State { CLOSED, OPEN, HALF_OPEN }
+
+  /**
+   * Breaker of a single origin. Only origins that failed recently have one
+   */
+  private static class Breaker {
+    State state = State.CLOSED;
+    int failures;         // Consecutive connect failures
+    long retryAt;         // When OPEN: time the next probe may go out
+    boolean lastTimedOut; // Decides between 504 and 502 for fast failures
+  }
+
+  /**
+   * Properties
+   */
+  private final int failureThreshold;
+  private final long openTime; // In milliseconds
+  private ConcurrentHashMap<String, Breaker> breakers;
+
+  // Counters for reporting
+  private final AtomicLong rejected;
+  private final AtomicLong opened;
+  private final AtomicLong probes;
+
+  /**
+   * Constructor
+   * @param failureThreshold Consecutive connect failures that mark an origin as down
+   * @param openTime Milliseconds a down origin is failed fast before it is probed again
+   */
+  public OriginHealth(int failureThreshold, long openTime) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openTime = openTime;
+    this.breakers = new ConcurrentHashMap<String, Breaker>();
+    this.rejected = new AtomicLong();
+    this.opened = new AtomicLong();
+    this.probes = new AtomicLong();
+  }
+
+  /**
+   * Whether a connect to the origin may be attempted.
+   * Once an open breaker's time is up, exactly one caller is let through
+   * as the probe; everyone else keeps failing fast until it reports back
+   */
+  public boolean allow(String origin) {
+    Breaker b = this.breakers.get(origin);
+    if (b == null) return true;
+    synchronized (b) {
+      long now = System.currentTimeMillis();
+      switch (b.state) {
+        case CLOSED:
+          return true;
+        case OPEN:
+          if (now < b.retryAt) break;
+          b.state = State.HALF_OPEN;
+          // A probe that never reports back must not wedge the origin
+          b.retryAt = now + this.openTime;
+          this.probes.incrementAndGet();
+          return true;
+        case HALF_OPEN:
+          if (now < b.retryAt) break;
+          b.retryAt = now + this.openTime;
+          this.probes.incrementAndGet();
+          return true;
+      }
+    }
+    this.rejected.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * A connect to the origin succeeded, close its breaker
+   */
+  public void recordSuccess(String origin) {
+    // Healthy origins are not tracked at all
+    if (this.breakers.containsKey(origin)) this.breakers.remove(origin);
+  }
+
+  /**
+   * A connect to the origin failed
+   * @param timedOut Whether it failed by timing out rather than being refused
+   */
+  public void recordFailure(String origin, boolean timedOut) {
+    Breaker b = this.breakers.get(origin);
+    if (b == null) {
+      Breaker fresh = new Breaker();
+      b = this.breakers.putIfAbsent(origin, fresh);
+      if (b == null) b = fresh;
+    }
+    synchronized (b) {
+      b.failures++;
+      b.lastTimedOut = timedOut;
+      // A failed probe reopens right away
+      if (b.state == State.HALF_OPEN || b.failures >= this.failureThreshold) {
+        if (b.state != State.OPEN) this.opened.incrementAndGet();
+        b.state = State.OPEN;
+        b.retryAt = System.currentTimeMillis() + this.openTime;
+      }
+    }
+  }
+
+  /**
+   * Whether the last failure of the origin was a timeout,
+   * so fast failures can answer 504 instead of 502
+   */
+  public boolean lastFailureTimedOut(String origin) {
+    Breaker b = this.breakers.get(origin);
+    if (b == null) return false;
+    synchronized (b) {
+      return b.lastTimedOut;
+    }
+  }
+
+  /**
+   * Human readable summary of the counters
+   */
+  public String getStats() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("tracked=").append(this.breakers.size());
+    sb.append(" opened=").append(this.opened.get());
+    sb.append(" probes=").append(this.probes.get());
+    sb.append(" fast-failures=").append(this.rejected.get());
+    return sb.toString();
+  }
+}
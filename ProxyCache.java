@@ -1,8 +1,9 @@
 import java.util.*;
 import java.util.concurrent.*; // For ConcurrentHashMap
+import java.util.concurrent.atomic.*; // For the counters
 import java.io.*;
 import java.net.*;
-import java.security.*; // For MD5 hexdigest
+import java.nio.charset.*; // For StandardCharsets
 
 public class ProxyCache {
 
@@ -14,13 +15,43 @@ public class ProxyCache {
   /**
    * Properties
    */
-  private ConcurrentHashMap<String, CachedContent> cacheMap;
-  private ConcurrentHashMap<String, String> md5Map;
+  // Keyed by the 128-bit hash of the variant id, no URI strings are held by the index itself
+  private ConcurrentHashMap<CacheKey, CachedContent> cacheMap;
+  // Request headers named by Vary, keyed by the plain URI hash
+  private ConcurrentHashMap<CacheKey, String[]> varyMap;
+  private CachePolicy policy;
+  // Revalidation connects follow the same rules as forwarded requests
+  private OriginHealth health; // May be null, no failure tracking then
+  private int connectTimeout;
+
+  // Counters for reporting
+  private final AtomicLong stored;
+  private final AtomicLong storedBytes;
+  private final AtomicLong skipped;
+  private final AtomicLong bytesAvoided;
 
   /**
    * Constructor
    */
   public ProxyCache() {
+    this(DefaultCachePolicy.fromSystemProperties());
+  }
+
+  /**
+   * Constructor
+   * @param policy Decides which responses get written to disk
+   */
+  public ProxyCache(CachePolicy policy) {
+    this(policy, null, 0);
+  }
+
+  /**
+   * Constructor
+   * @param policy Decides which responses get written to disk
+   * @param health Failure tracking shared with forwarded requests, may be null
+   * @param connectTimeout Milliseconds to wait for the origin when revalidating, 0 for no limit
+   */
+  public ProxyCache(CachePolicy policy, OriginHealth health, int connectTimeout) {
     // Check cache directory's existence
     File f = new File(CACHE_PATH);
     if (!f.exists() || !f.isDirectory()) {
@@ -32,162 +63,366 @@ public class ProxyCache {
       }
     }
     // Initialize concurrent hashmap
-    this.cacheMap = new ConcurrentHashMap<String, CachedContent>();
-    this.md5Map = new ConcurrentHashMap<String, String>();
+    this.cacheMap = new ConcurrentHashMap<CacheKey, CachedContent>();
+    this.varyMap = new ConcurrentHashMap<CacheKey, String[]>();
+    this.policy = policy;
+    this.health = health;
+    this.connectTimeout = connectTimeout;
+    this.stored = new AtomicLong();
+    this.storedBytes = new AtomicLong();
+    this.skipped = new AtomicLong();
+    this.bytesAvoided = new AtomicLong();
   }
 
-  private String pathFromURI(String URI) {
-    return String.format("%s/%s", CACHE_PATH, MD5(URI));
+  private static String pathFromKey(CacheKey key) {
+    return CACHE_PATH + "/" + key;
   }
 
   /**
-   * Get a md5 hash from an URI
-   * @param input {String} The string to get a hash of
-   * @return {String} The md5 hash of the string
+   * Check if the response to this request has been cached
    */
-  private String MD5(String input) {
-    if (this.md5Map.containsKey(input)) {
-      return this.md5Map.get(input);
-    }
-    try {
-      MessageDigest md = MessageDigest.getInstance("MD5");
-      md.update(input.getBytes());
-      byte[] digest = md.digest();
-      StringBuffer buf = new StringBuffer();
-      for (byte b : digest) {
-        buf.append(String.format("%02x", b & 0xff));
-      }
-      String md5Hash = buf.toString();
-      this.md5Map.put(input, md5Hash);
-      return md5Hash;
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
-      return null;
-    }
+  public boolean contains(Request request) throws IOException {
+    return get(request) != null;
   }
 
   /**
-   * Check if the URI has been cached
+   * Get the CachedContent object matching the request,
+   * null if there is none
    */
-  public boolean contains(String URI) throws IOException {
-    if (this.cacheMap.containsKey(URI)) return true;
-    CachedContent content = new CachedContent(URI);
+  public CachedContent get(Request request) throws IOException {
+    return get(request, null);
+  }
+
+  /**
+   * Same as above, also noting in the access log record how the lookup went
+   * @param record May be null
+   */
+  public CachedContent get(Request request, AccessLog.Record record) throws IOException {
+    if (record != null) record.cache = AccessLog.CacheResult.MISS;
+    // Only GETs are answered from the cache
+    if (!"GET".equals(request.get(Request.Field.METHOD))) return null;
+    String uri = request.get(Request.Field.URI);
+    return lookup(uri, variantId(uri, this.varyMap.get(CacheKey.of(uri)), request), record);
+  }
+
+  private CachedContent lookup(String uri, String id, AccessLog.Record record) throws IOException {
+    CacheKey key = CacheKey.of(id);
+    CachedContent content = this.cacheMap.get(key);
+    // Same key but a different id is a hash collision, treat as a miss
+    if (content != null && content.id.equals(id)) {
+      if (record != null) record.cache = AccessLog.CacheResult.HIT;
+      return content;
+    }
+    content = new CachedContent(uri, id, key);
     // If hash collision or file doesn't exist
-    if (!content.isValid()) return false;
+    if (!content.isValid()) return null;
+    if (record != null) {
+      record.cache = content.stale ? AccessLog.CacheResult.STALE : AccessLog.CacheResult.REVALIDATED;
+    }
     // Put content to cache
-    this.cacheMap.put(URI, content);
-    return true;
+    this.cacheMap.put(key, content);
+    return content;
   }
 
   /**
-   * Get the CachedContent object from the URI
+   * Start a new cache entry for the response, if the policy deems it worth storing.
+   * The response header must have been read already
+   * @return {CachedContent} The entry to write to, null if the response is not cached
    */
-  public CachedContent getFromURI(String URI) throws IOException {
-    if (!contains(URI)) {
+  public CachedContent create(Request request, Response response) throws IOException {
+    if (!this.policy.isCacheable(request, response)) {
+      this.skipped.incrementAndGet();
       return null;
     }
-    return this.cacheMap.get(URI);
+    String uri = request.get(Request.Field.URI);
+    // Remember what the response varies on, so later lookups build the same id
+    String[] vary = varyNames(response.getHeader("Vary"));
+    CacheKey uriKey = CacheKey.of(uri);
+    if (vary == null) this.varyMap.remove(uriKey);
+    else this.varyMap.put(uriKey, vary);
+
+    String id = variantId(uri, vary, request);
+    return new CachedContent(uri, id, CacheKey.of(id), new Date(), this.policy.getMaxObjectSize());
+  }
+
+  /**
+   * Account for a response that was forwarded without being cached
+   */
+  public void recordBypass(long bytes) {
+    this.bytesAvoided.addAndGet(bytes);
+  }
+
+  /**
+   * Lower-cased header names listed in a Vary value, null if none
+   */
+  private static String[] varyNames(String vary) {
+    if (vary == null || vary.trim().isEmpty()) return null;
+    String[] names = vary.split(",");
+    for (int i = 0; i < names.length; i++) names[i] = names[i].trim().toLowerCase();
+    Arrays.sort(names);
+    return names;
+  }
+
+  /**
+   * Identity of one stored variant: the URI alone, or the URI followed by
+   * the request's values for every header the response varies on
+   */
+  private static String variantId(String uri, String[] vary, Request request) {
+    if (vary == null) return uri;
+    StringBuilder sb = new StringBuilder(uri);
+    for (String name : vary) {
+      String value = request.getHeader(name);
+      sb.append(' ').append(name).append('=').append(value == null ? "" : value);
+    }
+    return sb.toString();
   }
 
-  public CachedContent create(String URI) throws IOException {
-    return new CachedContent(URI, new Date());
+  /**
+   * Human readable summary of the counters
+   */
+  public String getStats() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("stored=").append(this.stored.get());
+    sb.append(" stored-bytes=").append(this.storedBytes.get());
+    sb.append(" skipped=").append(this.skipped.get());
+    sb.append(" bytes-avoided=").append(this.bytesAvoided.get());
+    return sb.toString();
   }
 
   public class CachedContent {
     private String uri;
+    private String id; // URI plus varying request headers, see variantId
+    private CacheKey key;
     private Date retrieved;
     private File file;
+    private long dataOffset;
+
+    // Validators of the stored response, null when the origin sent none
+    private String etag;
+    private String lastModified;
 
-    private BufferedInputStream fromCache;
-    private BufferedOutputStream toCache;
+    // Only set on entries being written
+    private File tempFile;
+    private CacheStream toCache;
 
     private boolean valid;
+    private boolean stale; // Served without the origin confirming it
 
     /**
      * Constructor.
-     * Creates a cached content from scratch, begin to write to
+     * Creates a cached content from scratch, begin to write to.
+     * Data goes to a temporary file that replaces the entry on finish()
      */
-    public CachedContent(String uri, Date retrieved) throws IOException {
+    public CachedContent(String uri, String id, CacheKey key, Date retrieved, long maxSize) throws IOException {
       // Set params that are passed in first
       this.uri = uri;
+      this.id = id;
+      this.key = key;
       this.retrieved = retrieved;
       // Set file
-      this.file = new File(pathFromURI(uri));
+      this.file = new File(pathFromKey(key));
+      this.tempFile = new File(this.file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
       // Write metadata:
-      // <first line>: URI
+      // <first line>: Variant id, the URI unless the response has a Vary header
       // <second line>: Date (in number of millis)
       // <third line onwards>: Actual response data
       StringBuilder sb = new StringBuilder();
-      sb.append(uri).append("\r\n").append(retrieved.getTime()).append("\r\n");
+      sb.append(id).append("\r\n").append(retrieved.getTime()).append("\r\n");
       byte[] b = sb.toString().getBytes();
-      this.toCache = new BufferedOutputStream(new FileOutputStream(this.file));
+      this.toCache = new CacheStream(new FileOutputStream(this.tempFile), b.length + maxSize);
       this.toCache.write(b, 0, b.length);
       // Content created from scratch should be valid
       this.valid = true;
     }
 
-    public BufferedOutputStream getOutputStream() {
+    public OutputStream getOutputStream() {
       return this.toCache;
     }
 
+    /**
+     * Complete an entry being written. It becomes visible to lookups,
+     * unless the body outgrew the size limit, in which case it is dropped
+     */
+    public void finish() throws IOException {
+      this.toCache.close();
+      if (this.toCache.discarded > 0) {
+        this.tempFile.delete();
+        skipped.incrementAndGet();
+        bytesAvoided.addAndGet(this.toCache.discarded);
+        return;
+      }
+      if (!this.tempFile.renameTo(this.file)) {
+        this.tempFile.delete();
+        throw new IOException("Could not move " + this.tempFile + " into the cache");
+      }
+      // Any loaded copy of the previous version is stale now
+      cacheMap.remove(this.key);
+      stored.incrementAndGet();
+      storedBytes.addAndGet(this.toCache.written);
+    }
+
+    /**
+     * Throw away an entry being written, e.g. when forwarding failed
+     */
+    public void abort() {
+      try {
+        this.toCache.close();
+      } catch (IOException e) {
+        // Nothing to do, the file goes away anyway
+      }
+      this.tempFile.delete();
+    }
+
     /**
      * Constructor.
      * Creates content from cache
      */
-    public CachedContent(String uri) throws IOException {
+    public CachedContent(String uri, String id, CacheKey key) throws IOException {
       this.uri = uri;
-      this.file = new File(pathFromURI(uri));
+      this.id = id;
+      this.key = key;
+      this.file = new File(pathFromKey(key));
       if (!file.exists() || file.isDirectory()) { this.valid = false; return; }
-      BufferedInputStream queryStream = new BufferedInputStream(new FileInputStream(file));
-      byte[] b = new byte[8192];
-      int len = queryStream.read(b);
-      if (len <= 0) { this.valid = false; return; }
+      byte[] b = BufferPool.acquire(8192);
       int eom; // End of metadata
-      for (eom=0;eom<len && (b[eom] != '\r' || !(new String(b, eom, 2)).equals("\r\n")); eom++);
-      String uriFromMeta = new String(b, 0, eom);
-      if (!uriFromMeta.equals(uri)) {
-        // Hash collision
-        this.valid = false;
+      try {
+        eom = readMetadata(b);
+      } finally {
+        BufferPool.release(b);
+      }
+      if (eom < 0) { this.valid = false; return; }
+
+      Request req = Request.ifModifiedSince(this.uri, this.retrieved, this.etag);
+      String origin = req.get(Request.Field.HOST_ADDRESS) + ":" + req.get(Request.Field.PORT);
+      // Origin known to be down, serve what we have without waiting on it
+      if (health != null && !health.allow(origin)) {
+        this.valid = true;
+        this.stale = true;
+        this.dataOffset = eom;
         return;
       }
-      int sosl = eom + 2; // Start of second line
-      for (eom=sosl;eom<len &&(b[eom] != '\r' || !(new String(b, eom, 2)).equals("\r\n")); eom++);
-      this.retrieved = new Date(Long.parseLong(new String(b, sosl, eom - sosl)));
-      eom += 2;
-      queryStream.close();
 
+      b = BufferPool.acquire(256); // Hopefully 256 is sufficient to read just the statusCode
       try {
-        Request req = Request.ifModifiedSince(this.uri, this.retrieved);
-        Socket remoteSocket = req.createSocket();
-        BufferedOutputStream toRemote = new BufferedOutputStream(remoteSocket.getOutputStream());
+        Socket remoteSocket;
+        try {
+          remoteSocket = req.createSocket(connectTimeout);
+        } catch (IOException e) {
+          if (health != null) health.recordFailure(origin, e instanceof SocketTimeoutException);
+          throw e;
+        }
+        if (health != null) health.recordSuccess(origin);
+        // An origin that accepts but never answers must not hold the worker either
+        remoteSocket.setSoTimeout(connectTimeout);
+        OutputStream toRemote = new BufferPool.PooledOutputStream(remoteSocket.getOutputStream());
         req.fire(toRemote);
-        BufferedInputStream fromRemote = new BufferedInputStream(remoteSocket.getInputStream());
-        b = new byte[256]; // Hopefully 256 is sufficient to read just the statusCode
-        len = fromRemote.read(b);
+        InputStream fromRemote = new BufferPool.PooledInputStream(remoteSocket.getInputStream());
+        int len = fromRemote.read(b, 0, 256);
         if (len > 0) {
           // Find response header
           int eofl; // End of header's first line
-          for (eofl=0;eofl<len && (b[eofl] != '\r' || (new String(b, eofl, 2)).equals("\r\n")); eofl++);
+          for (eofl=0;eofl<len && b[eofl] != '\r'; eofl++);
           String statusCode = new String(b, 0, eofl).split("\\s+", 3)[1];
-          // If statusCode is 302 means content is not modified
-          this.valid = statusCode.equals("302");
+          // If statusCode is 304 means content is not modified
+          this.valid = statusCode.equals("304");
         }
         fromRemote.close();
         toRemote.close();
         remoteSocket.close();
       } catch (IOException e) {
         System.out.println("Error checking for modifications. Assuming cached content is fresh.");
+        this.valid = true;
+        this.stale = true;
       } finally {
-        if (!this.valid) return;
-        this.fromCache = new BufferedInputStream(new FileInputStream(file));
-        this.fromCache.skip(eom); // Skip metadata
+        BufferPool.release(b);
+      }
+      this.dataOffset = eom;
+    }
 
-        this.valid = true;
+    /**
+     * Read the metadata lines at the top of the cache file into b,
+     * and pick the validators out of the stored response header.
+     * @return {int} Offset where the response data starts, -1 if the file is unusable
+     */
+    private int readMetadata(byte[] b) throws IOException {
+      // Read straight into b, a buffered wrapper would only add a copy
+      FileInputStream queryStream = new FileInputStream(file);
+      int len;
+      try {
+        len = queryStream.read(b, 0, b.length);
+      } finally {
+        queryStream.close();
+      }
+      if (len <= 0) return -1;
+      int eom; // End of metadata
+      for (eom=0;eom<len && b[eom] != '\r'; eom++);
+      String uriFromMeta = new String(b, 0, eom); // Variant id, see variantId
+      if (!uriFromMeta.equals(this.id)) {
+        // Hash collision
+        return -1;
+      }
+      int sosl = eom + 2; // Start of second line
+      for (eom=sosl;eom<len && b[eom] != '\r'; eom++);
+      this.retrieved = new Date(Long.parseLong(new String(b, sosl, eom - sosl)));
+      eom += 2;
+
+      // Response header lines, up to the first empty line
+      int eol;
+      for (int sol = eom; sol < len; sol = eol + 2) {
+        for (eol = sol; eol < len && b[eol] != '\r'; eol++);
+        if (eol == sol || eol == len) break;
+        String line = new String(b, sol, eol - sol, StandardCharsets.ISO_8859_1);
+        int colon = line.indexOf(':');
+        if (colon < 0) continue;
+        String name = line.substring(0, colon).trim();
+        if (name.equalsIgnoreCase("ETag")) {
+          this.etag = line.substring(colon + 1).trim();
+        } else if (name.equalsIgnoreCase("Last-Modified")) {
+          this.lastModified = line.substring(colon + 1).trim();
+        }
+      }
+      return eom;
+    }
+
+    /**
+     * Open a fresh stream over the cached response.
+     * Each caller gets its own stream and must close it
+     */
+    public InputStream getInputStream() throws IOException {
+      InputStream fromCache = new BufferPool.PooledInputStream(new FileInputStream(this.file));
+      fromCache.skip(this.dataOffset); // Skip metadata
+      return fromCache;
+    }
+
+    public String getETag() { return this.etag; }
+    public String getLastModified() { return this.lastModified; }
+
+    /**
+     * Evaluate a client's conditional headers against the stored validators.
+     * If-None-Match takes precedence over If-Modified-Since when both are sent
+     * @return {boolean} true when the client's copy is current and a 304 will do
+     */
+    public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+      if (ifNoneMatch != null) {
+        if (ifNoneMatch.trim().equals("*")) return true;
+        if (this.etag == null) return false;
+        // Weak comparison, W/ prefixes are ignored on both sides
+        String ours = stripWeak(this.etag);
+        for (String tag : ifNoneMatch.split(",")) {
+          if (stripWeak(tag.trim()).equals(ours)) return true;
+        }
+        return false;
       }
+      if (ifModifiedSince != null && this.lastModified != null) {
+        Date since = Request.parseDate(ifModifiedSince);
+        Date modified = Request.parseDate(this.lastModified);
+        return since != null && modified != null && !modified.after(since);
+      }
+      return false;
     }
 
-    public BufferedInputStream getInputStream() {
-      return this.fromCache;
+    private String stripWeak(String tag) {
+      return tag.startsWith("W/") ? tag.substring(2) : tag;
     }
 
     /**
@@ -195,4 +430,32 @@ public class ProxyCache {
      */
     public boolean isValid() { return this.valid; }
   }
+
+  /**
+   * Output stream of an entry being written. Past its limit it stops
+   * writing and only counts, so oversized bodies never reach the disk
+   */
+  private static class CacheStream extends BufferPool.PooledOutputStream {
+    private long limit;
+    private long written;
+    private long discarded;
+
+    CacheStream(OutputStream out, long limit) {
+      super(out);
+      this.limit = limit;
+    }
+
+    public synchronized void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (this.discarded > 0 || this.written + len > this.limit) {
+        this.discarded += len;
+        return;
+      }
+      super.write(b, off, len);
+      this.written += len;
+    }
+  }
 }
@@ -15,28 +15,57 @@ public class ProxyRunnable implements Runnable {
   private Socket clientSocket;
   private ProxyCache cache;
   private CensorEngine censorEngine;
+  private AdmissionControl admission;
+  private UpstreamPool upstreams;
+  private OriginHealth health;
+  private int connectTimeout;
+  private int readTimeout;
+  private AccessLog accessLog;
+  private AccessLog.Record record; // Filled in as the exchange goes
+  private long enqueuedAt;
 
   /**
    * Constructor
    */
-  public ProxyRunnable(Socket clientSocket, ProxyCache cache, CensorEngine engine) {
+  public ProxyRunnable(Socket clientSocket, ProxyCache cache, CensorEngine engine,
+                       AdmissionControl admission, UpstreamPool upstreams,
+                       OriginHealth health, int connectTimeout, int readTimeout,
+                       AccessLog accessLog) {
     this.clientSocket = clientSocket;
     this.cache = cache;
     this.censorEngine = engine;
+    this.admission = admission;
+    this.upstreams = upstreams;
+    this.health = health;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.accessLog = accessLog;
+    this.record = new AccessLog.Record();
+    this.record.time = System.currentTimeMillis();
+    this.enqueuedAt = System.nanoTime();
   }
 
   /**
    * Runnable implementation
    */
   public void run() {
+    // Time spent waiting for a free worker
+    long mark = System.nanoTime();
+    this.record.queue = mark - this.enqueuedAt;
+    this.admission.recordQueueWait(this.record.queue);
     // Prepare the stream toClient so that we can send error response
-    BufferedOutputStream toClient = null;
+    OutputStream toClient = null;
     // Have this one too so we can close it properly
-    BufferedInputStream fromClient = null;
+    InputStream fromClient = null;
+    // Cache entry being written, dropped if the exchange fails midway
+    ProxyCache.CachedContent entry = null;
+    // Connection to the origin, closed on failure unless it went back to the pool
+    Socket remoteSocket = null;
     try {
       // Read request from client
-      fromClient = new BufferedInputStream(this.clientSocket.getInputStream());
+      fromClient = new BufferPool.PooledInputStream(this.clientSocket.getInputStream());
       Request request = new Request(fromClient);
+      this.record.read = System.nanoTime() - mark;
 
       // Check request's validity
       if (!request.isValid()) {
@@ -44,15 +73,37 @@ public class ProxyRunnable implements Runnable {
         this.clientSocket.close();
         return;
       }
+      this.record.client = this.clientSocket.getInetAddress();
+      this.record.method = request.get(Request.Field.METHOD);
+      this.record.uri = request.get(Request.Field.URI);
+      this.record.ifNoneMatch = request.getHeader("If-None-Match");
+      this.record.ifModifiedSince = request.getHeader("If-Modified-Since");
 
-      String uri = null;
-      toClient = new BufferedOutputStream(this.clientSocket.getOutputStream());
+      toClient = new BufferPool.PooledOutputStream(this.clientSocket.getOutputStream());
       // Checks for cached item
-      if (CACHING_ENABLED && this.cache.contains(uri = request.get(Request.Field.URI))) {
+      mark = System.nanoTime();
+      ProxyCache.CachedContent cached = CACHING_ENABLED ? this.cache.get(request, this.record) : null;
+      this.record.lookup = System.nanoTime() - mark;
+      mark = System.nanoTime();
+      if (cached != null) {
+        // Client already holds the current copy, answer with the header only
+        if (cached.isNotModified(request.getHeader("If-None-Match"),
+                                 request.getHeader("If-Modified-Since"))) {
+          this.record.status = 304;
+          this.record.bytes = Response.createNotModified(cached.getETag(), cached.getLastModified()).forward(toClient);
+          this.record.transfer = System.nanoTime() - mark;
+          toClient.close();
+          fromClient.close();
+          this.clientSocket.close();
+          return;
+        }
+
         // Reads from cache
-        BufferedInputStream fromCache = this.cache.getFromURI(uri).getInputStream();
+        InputStream fromCache = cached.getInputStream();
         Response response = Response.read(fromCache);
-        response.forward(toClient);
+        this.record.bytes = response.forward(toClient);
+        this.record.status = response.getStatusCode();
+        this.record.transfer = System.nanoTime() - mark;
 
         // Close all streams and exit
         toClient.close();
@@ -63,43 +114,93 @@ public class ProxyRunnable implements Runnable {
       }
 
       // If cached item doesn't exist or caching is disabled
-      // Create a socket that connects to the remote server
-      Socket remoteSocket = request.createSocket();
-
-      // If somehow the socket creation process fails, exit
-      if (remoteSocket == null) {
-        fromClient.close();
-        this.clientSocket.close();
-        return;
-      }
+      String origin = request.get(Request.Field.HOST_ADDRESS) + ":" + request.get(Request.Field.PORT);
+      String method = request.get(Request.Field.METHOD);
+      // Only idempotent requests may go over a pooled connection, since a
+      // connection the origin dropped is only noticed after sending on it
+      boolean idempotent = method.equals("GET") || method.equals("HEAD");
 
-      // Fire request to remote server
-      BufferedOutputStream toRemote = new BufferedOutputStream(remoteSocket.getOutputStream());
-      request.fire(toRemote);
+      remoteSocket = idempotent ? this.upstreams.acquire(origin) : null;
+      boolean reused = remoteSocket != null;
+      BufferPool.PooledOutputStream toRemote;
+      BufferPool.PooledInputStream fromRemote;
+      Response response;
+      while (true) {
+        // Create a socket that connects to the remote server
+        if (!reused && (remoteSocket = connect(request, origin, toClient)) == null) {
+          // Shed, failed fast or the socket creation process failed, exit
+          this.record.upstream = System.nanoTime() - mark;
+          toClient.close();
+          fromClient.close();
+          this.clientSocket.close();
+          return;
+        }
 
-      // Prepare streams for forwarding of requests
-      BufferedInputStream fromRemote = new BufferedInputStream(remoteSocket.getInputStream());
-      Response response = Response.read(fromRemote);
+        // An origin that accepts but never answers must not hold the worker
+        remoteSocket.setSoTimeout(this.readTimeout);
+        // Fire request to remote server
+        toRemote = new BufferPool.PooledOutputStream(remoteSocket.getOutputStream());
+        // Prepare streams for forwarding of requests
+        fromRemote = new BufferPool.PooledInputStream(remoteSocket.getInputStream());
+        try {
+          request.fire(toRemote);
+          response = Response.read(fromRemote, method);
+          response.readHeader();
+          if (!reused || response.getStatusCode() != 0) break;
+        } catch (IOException e) {
+          // A timeout is no sign of a dropped connection, retrying would only wait again
+          if (!reused || e instanceof SocketTimeoutException) throw e;
+        }
+        // The pooled connection had been closed by the origin, retry once on a fresh one
+        fromRemote.close();
+        toRemote.close();
+        remoteSocket.close();
+        reused = false;
+      }
+      this.record.status = response.getStatusCode();
+      this.record.upstream = System.nanoTime() - mark;
+      mark = System.nanoTime();
 
       // Add censor engine if censoring is enabled
       if (CENSOR_ENABLED) response.setCensorEngine(this.censorEngine);
 
+      // Decide on caching once the header is in, before any byte hits the disk
+      if (CACHING_ENABLED) entry = this.cache.create(request, response);
+
       // Forward request to client and cache
-      BufferedOutputStream toCache = null;
-      if (CACHING_ENABLED) toCache = this.cache.create(uri).getOutputStream();
-      response.forward(toClient, toCache);
+      OutputStream toCache = entry != null ? entry.getOutputStream() : null;
+      long bytes = response.forward(toClient, toCache);
+      this.record.bytes = bytes;
+      this.record.transfer = System.nanoTime() - mark;
+
+      if (entry != null) entry.finish();
+      else if (CACHING_ENABLED) this.cache.recordBypass(bytes);
+      entry = null;
+
+      // Keep the connection for the next request as soon as the message
+      // has ended by its framing, rather than waiting for the origin to close
+      if (response.isReusable() && fromRemote.detach()) {
+        toRemote.detach();
+        this.upstreams.release(origin, remoteSocket);
+        remoteSocket = null;
+      } else {
+        fromRemote.close();
+        toRemote.close();
+        remoteSocket.close();
+      }
 
       toClient.close();
-      fromRemote.close();
-      toRemote.close();
       fromClient.close();
 
-      remoteSocket.close();
-
       // WARNING: HARDCODE ERROR HANDLING ACTION BELOW
     } catch (IOException e) {
+      if (entry != null) entry.abort();
+      // Only the origin's socket has a read timeout once the request is in
+      boolean timedOut = e instanceof SocketTimeoutException;
       if (toClient != null) {
-        Response res = Response.createBadGateway();
+        // Unless part of the response already went out
+        if (this.record.status == 0) this.record.status = timedOut ? 504 : 502;
+        Response res = timedOut ? Response.createGatewayTimeout() : Response.createBadGateway();
         // Try to send this response to client
         try {
           res.forward(toClient);
@@ -113,15 +214,66 @@ public class ProxyRunnable implements Runnable {
             e3.printStackTrace();
           }
         }
-      } else {
+      } else if (!timedOut) {
+        // A client that sent nothing in time is simply dropped
         e.printStackTrace();
       }
     } finally {
       try {
+        // Closing again is harmless, and hands pooled buffers back on early exits
+        if (fromClient != null) fromClient.close();
         this.clientSocket.close();
+        if (remoteSocket != null) remoteSocket.close();
       } catch (IOException e) {
         e.printStackTrace();
       }
+      // Only exchanges with a valid request line are logged
+      if (this.record.method != null) {
+        this.record.total = System.nanoTime() - this.enqueuedAt;
+        this.accessLog.append(this.record);
+      }
+    }
+  }
+
+  /**
+   * Open a new connection to the origin, within its connect limit.
+   * Over the limit the client gets a 503 right away. An origin that
+   * failed recently gets a 502 or 504 right away, without a connect
+   * @return {Socket} The connected socket, null if shed or creation failed
+   */
+  private Socket connect(Request request, String origin, OutputStream toClient) throws IOException {
+    // Known bad origin, answer the way its last failure was answered
+    if (!this.health.allow(origin)) {
+      failed(toClient, this.health.lastFailureTimedOut(origin));
+      return null;
     }
+    // Don't pile more connects onto an origin that is already at its limit
+    if (!this.admission.tryAcquireConnect(origin)) {
+      this.record.status = 503;
+      Response.createServiceUnavailable().forward(toClient);
+      return null;
+    }
+    try {
+      Socket socket = request.createSocket(this.connectTimeout);
+      this.health.recordSuccess(origin);
+      return socket;
+    } catch (SocketTimeoutException e) {
+      this.health.recordFailure(origin, true);
+      failed(toClient, true);
+      return null;
+    } catch (IOException e) {
+      // Refused, unreachable or unknown host
+      this.health.recordFailure(origin, false);
+      failed(toClient, false);
+      return null;
+    } finally {
+      this.admission.releaseConnect(origin);
+    }
+  }
+
+  private void failed(OutputStream toClient, boolean timedOut) throws IOException {
+    this.record.status = timedOut ? 504 : 502;
+    Response res = timedOut ? Response.createGatewayTimeout() : Response.createBadGateway();
+    this.record.bytes = res.forward(toClient);
   }
 }
@@ -1,5 +1,6 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*; // For StandardCharsets
 import java.util.*;
 import java.util.regex.*; // For Pattern and Matcher
 import java.text.*; // For SimpleDateFormat
@@ -16,7 +17,8 @@ public class Request {
     HOST         ("Host"),
     HOST_ADDRESS ("Host-Address"),
     PORT         ("Port"),
-    IF_MODIFIED_SINCE("If-Modified-Since");
+    IF_MODIFIED_SINCE("If-Modified-Since"),
+    IF_NONE_MATCH("If-None-Match");
 
     public final String key;
     Field(String k) {
@@ -28,7 +30,8 @@ public class Request {
    * Constants
    */
   private static final int DEFAULT_PORT = 80;
-  private static final String URI_PATTERN = "^(?:http(?:s)?://)?([^/]+)(:\\d+)?(?:.+)?$";
+  private static final String URI_PATTERN = "^(?:http(?:s)?://)?([^/:]+)(?::(\\d+))?(?:.+)?$";
+  private static final Pattern URI_REGEX = Pattern.compile(URI_PATTERN);
 
   /**
    * Properties
@@ -43,17 +46,29 @@ public class Request {
    * Constructor
    * @param inputStream The stream to read the request data from
    */
-  public Request(BufferedInputStream inputStream) throws IOException {
-    byte[] b = new byte[8192];
-    int len = inputStream.read(b);
+  public Request(InputStream inputStream) throws IOException {
+    byte[] b = BufferPool.acquire(8192);
+    try {
+      parse(b, inputStream.read(b, 0, 8192));
+    } finally {
+      BufferPool.release(b);
+    }
+  }
 
+  /**
+   * Parse the request data read into the borrowed buffer.
+   * Nothing may keep a reference to the buffer after this returns
+   */
+  private void parse(byte[] b, int len) {
     // Reject empty requests
     if (len <= 0) { this.valid = false; return; }
 
-    String[] lines = (new String(b, 0, len)).split("\r\n");
+    // Headers are ASCII, decoding as Latin-1 keeps it one char per byte
+    String data = new String(b, 0, len, StandardCharsets.ISO_8859_1);
+    int eol = data.indexOf("\r\n");
 
     // Split first line into <method> <uri> <httpVersion>
-    String[] params = lines[0].split("\\s+",3);
+    String[] params = (eol < 0 ? data : data.substring(0, eol)).split("\\s+",3);
 
     // Invalid params -> invalid request
     if (params.length != 3) { this.valid = false; return; }
@@ -73,16 +88,20 @@ public class Request {
     set(Field.URI   , uri);
     set(Field.HTTP_VERSION, httpVersion);
 
-    // Read the rest of the request
-    for (int i = 1; i < lines.length; i++) {
-      String[] parts = lines[i].split(":\\s+",2);
-      if (parts.length != 2) continue;
-      this.fieldsMap.put(parts[0].trim(), parts[1].trim());
+    // Read the rest of the header, line by line up to the empty line
+    int bodyStart = len;
+    for (int start = eol + 2; eol >= 0 && start < len; start = eol + 2) {
+      eol = data.indexOf("\r\n", start);
+      int end = eol < 0 ? len : eol;
+      if (end == start) { bodyStart = start + 2; break; }
+      int colon = data.indexOf(':', start);
+      if (colon < 0 || colon >= end) continue;
+      this.fieldsMap.put(data.substring(start, colon).trim(), data.substring(colon + 1, end).trim());
     }
 
     // Find out the host address and the port from the Host: field
     String host;
-    if ((host = get(Field.HOST)) != null) {
+    if ((host = getHeader(Field.HOST.key)) != null) {
       String[] parts = host.split(":", 2);
       set(Field.HOST_ADDRESS, parts[0].trim());
       // If port exists inside host, set to that port
@@ -96,8 +115,7 @@ public class Request {
     }
     // Find out host address from URI
     else {
-      Pattern uriPattern = Pattern.compile(URI_PATTERN);
-      Matcher m = uriPattern.matcher(uri);
+      Matcher m = URI_REGEX.matcher(uri);
       // Check for matches
       if (m.matches()) {
         set(Field.HOST_ADDRESS, m.group(1).trim());
@@ -115,29 +133,66 @@ public class Request {
       }
     }
 
-    // Set raw data and length
-    this.rawData = b;
-    this.length = len;
+    // Keep only the bytes to send upstream, the buffer goes back to the pool
+    this.rawData = upstreamBytes(b, Math.min(bodyStart, len), len);
+    this.length = this.rawData.length;
 
     // Set validity
     this.valid = true;
   }
 
+  /**
+   * The request as sent to the origin: HTTP/1.1 so that the connection
+   * can be kept open, hop-by-hop fields from the client dropped, and
+   * any body bytes read so far appended unchanged
+   */
+  private byte[] upstreamBytes(byte[] b, int bodyStart, int len) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(get(Field.METHOD)).append(" ").append(get(Field.URI)).append(" HTTP/1.1\r\n");
+    // Fields derived by the parser, not sent by the client
+    Set<String> derived = new HashSet<String>(Arrays.asList(
+        Field.METHOD.key, Field.URI.key, Field.HTTP_VERSION.key,
+        Field.HOST_ADDRESS.key, Field.PORT.key));
+    String connection = getHeader("Connection");
+    for (Map.Entry<String, String> e : this.fieldsMap.entrySet()) {
+      String name = e.getKey();
+      if (derived.contains(name) || Response.isHopByHop(name)) continue;
+      // The body is sent right away and no 100 Continue is relayed back, so don't ask for one
+      if (name.equalsIgnoreCase("Expect")) continue;
+      if (connection != null && Response.hasToken(connection, name)) continue;
+      sb.append(name).append(": ").append(e.getValue()).append("\r\n");
+    }
+    // HTTP/1.1 requires Host
+    if (getHeader(Field.HOST.key) == null) {
+      sb.append(Field.HOST.key).append(": ").append(get(Field.HOST_ADDRESS));
+      if (!get(Field.PORT).equals(Integer.toString(DEFAULT_PORT))) sb.append(":").append(get(Field.PORT));
+      sb.append("\r\n");
+    }
+    sb.append("\r\n");
+    byte[] header = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    byte[] data = Arrays.copyOf(header, header.length + len - bodyStart);
+    System.arraycopy(b, bodyStart, data, header.length, len - bodyStart);
+    return data;
+  }
+
   /**
    * Constructing an If-Modified-Since request
    */
   private Request() { this.fieldsMap = new LinkedHashMap<>(); }
 
   public static Request ifModifiedSince(String uri, Date date) {
+    return ifModifiedSince(uri, date, null);
+  }
+
+  /**
+   * Same as above, also sending If-None-Match when an entity tag is known
+   */
+  public static Request ifModifiedSince(String uri, Date date, String etag) {
     // Set defaults for this constructor
     final String method = "GET";
     final String httpVersion = "HTTP/1.0";
-    // Prepare date formatter into server-acceptable date formats
-    SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH);
-    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
     // Use regex to parse the URI
-    Pattern uriPattern = Pattern.compile(URI_PATTERN);
-    Matcher m = uriPattern.matcher(uri);
+    Matcher m = URI_REGEX.matcher(uri);
 
     // Initialize request
     Request req = new Request();
@@ -157,9 +212,13 @@ public class Request {
       }
       // Host field
       sb.append(Field.HOST.key).append(": ").append(host).append("\r\n");
+      // If none match field
+      if (etag != null) {
+        sb.append(Field.IF_NONE_MATCH.key).append(": ").append(etag).append("\r\n");
+      }
       // If modified since field
       sb.append(Field.IF_MODIFIED_SINCE.key).append(": ");
-      sb.append(dateFormat.format(date)).append("\r\n\r\n");
+      sb.append(formatDate(date)).append("\r\n\r\n");
 
       // Set raw data
       byte[] data = sb.toString().getBytes();
@@ -183,6 +242,31 @@ public class Request {
     }
   }
 
+  /**
+   * HTTP dates, in the RFC 1123 format servers expect
+   */
+  public static String formatDate(Date date) {
+    return httpDateFormat().format(date);
+  }
+
+  /**
+   * @return {Date} The parsed date, or null if it isn't a valid HTTP date
+   */
+  public static Date parseDate(String date) {
+    try {
+      return httpDateFormat().parse(date.trim());
+    } catch (ParseException e) {
+      return null;
+    }
+  }
+
+  // SimpleDateFormat isn't thread safe, so every caller gets its own
+  private static SimpleDateFormat httpDateFormat() {
+    SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return dateFormat;
+  }
+
   /**
    * Check if the initialized request is valid
    */
@@ -205,7 +289,27 @@ public class Request {
     return this.fieldsMap.get(field.key);
   }
 
+  /**
+   * Header lookup by name, ignoring case as HTTP does
+   */
+  public String getHeader(String name) {
+    String value = this.fieldsMap.get(name);
+    if (value != null) return value;
+    for (Map.Entry<String, String> e : this.fieldsMap.entrySet()) {
+      if (e.getKey().equalsIgnoreCase(name)) return e.getValue();
+    }
+    return null;
+  }
+
   public Socket createSocket() throws IOException {
+    return createSocket(0);
+  }
+
+  /**
+   * Same as above, giving up on the connect after the given time
+   * @param connectTimeout In milliseconds, 0 waits as long as the system does
+   */
+  public Socket createSocket(int connectTimeout) throws IOException {
     String hostAddr = get(Field.HOST_ADDRESS);
     if (!this.isValid() || hostAddr == null) return null;
     int port = DEFAULT_PORT;
@@ -215,14 +319,24 @@ public class Request {
       e.printStackTrace();
       port = DEFAULT_PORT;
     } finally {
-      return new Socket(hostAddr, port);
+      // Resolving happens here too, an unknown host throws UnknownHostException
+      InetSocketAddress address = new InetSocketAddress(hostAddr, port);
+      if (address.isUnresolved()) throw new UnknownHostException(hostAddr);
+      Socket socket = new Socket();
+      try {
+        socket.connect(address, connectTimeout);
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+      return socket;
     }
   }
 
   /**
    * Fire this request to the destination BufferedWriter
    */
-  public void fire(BufferedOutputStream dest) throws IOException {
+  public void fire(OutputStream dest) throws IOException {
     dest.write(this.rawData, 0, this.length);
     dest.flush();
   }
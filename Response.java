@@ -1,47 +1,128 @@
 import java.io.*;
+import java.nio.charset.*; // For StandardCharsets
 import java.text.*;
 import java.util.*;
 
 public class Response {
 
+  /**
+   * Constants
+   */
+  // Serialized once so that shedding load costs no formatting work
+  private static final byte[] SERVICE_UNAVAILABLE = (
+      "HTTP/1.0 503 Service Unavailable\r\n" +
+      "Content-Length: 0\r\n" +
+      "Retry-After: 1\r\n" +
+      "Connection: close\r\n\r\n").getBytes();
+  // Fields that only concern a single connection, RFC 7230 section 6.1
+  private static final String[] HOP_BY_HOP = {
+      "Connection", "Keep-Alive", "Proxy-Connection", "Transfer-Encoding",
+      "TE", "Trailer", "Upgrade" };
+
   /**
    * Properties
    */
-  private BufferedInputStream dataSource;
+  private InputStream dataSource;
   private CensorEngine censorEngine;
 
+  private boolean bodiless; // Reply to HEAD, never has a body
+
+  // Filled in by readHeader()
+  private boolean headerRead;
+  private boolean headerComplete;
+  private byte[] buffer;    // Borrowed, holds the header and the first body bytes
+  private int bufferLength;
+  private int headerEnd;    // Offset of the blank line ending the header
+  private String statusLine;
+  private int statusCode;
+  private ArrayList<String> headerLines;
+  private TreeMap<String, String> headers;
+  private BodyInputStream body;
+
   // Private constructor
-  private Response(BufferedInputStream source) {
+  private Response(InputStream source) {
     this.dataSource = source;
     this.censorEngine = null;
+    this.headerLines = new ArrayList<String>();
+    this.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
   }
 
   /**
    * Static Constructor.
    * Alias for private constructor, just for better readability
    */
-  public static Response read(BufferedInputStream source) {
+  public static Response read(InputStream source) {
     return new Response(source);
   }
 
+  /**
+   * Same as above, for the response to a request with the given method.
+   * The method matters because a reply to HEAD has no body
+   */
+  public static Response read(InputStream source, String requestMethod) {
+    Response response = new Response(source);
+    response.bodiless = "HEAD".equals(requestMethod);
+    return response;
+  }
+
   public static Response createBadGateway() {
+    return createError("502 Bad Gateway");
+  }
+
+  /**
+   * For an origin that did not answer the connect in time
+   */
+  public static Response createGatewayTimeout() {
+    return createError("504 Gateway Timeout");
+  }
+
+  private static Response createError(String status) {
     // Prepare date formatter into server-acceptable date formats
     SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH);
     dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
 
+    String title = status.replaceFirst(" ", " - ");
+    String body = "<!doctype html><html><head><meta charset='UTF-8'><title>" + title + "</title>"
+        + "</head><body><h1>" + title + "</h1></body></html>";
+
     // Begin request data
     StringBuilder sb = new StringBuilder();
-    sb.append("HTTP/1.0 502 Bad Gateway\r\n");
+    sb.append("HTTP/1.0 ").append(status).append("\r\n");
     sb.append("Date: ").append(dateFormat.format(new Date())).append("\r\n");
-    sb.append("Content-Length: 134\r\n");
+    sb.append("Content-Length: ").append(body.length()).append("\r\n");
     sb.append("Connection: close\r\n\r\n");
+    sb.append(body);
+
+    return new Response(new BufferedInputStream(new ByteArrayInputStream(sb.toString().getBytes())));
+  }
 
-    sb.append("<!doctype html><html><head><meta charset='UTF-8'><title>502 - Bad Gateway</title>");
-    sb.append("</head><body><h1>502 - Bad Gateway</h1></body></html>");
+  /**
+   * Header-only 304 answered from the cache, echoing the stored validators
+   */
+  public static Response createNotModified(String etag, String lastModified) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("HTTP/1.0 304 Not Modified\r\n");
+    sb.append("Date: ").append(Request.formatDate(new Date())).append("\r\n");
+    if (etag != null) sb.append("ETag: ").append(etag).append("\r\n");
+    if (lastModified != null) sb.append("Last-Modified: ").append(lastModified).append("\r\n");
+    sb.append("Connection: close\r\n\r\n");
 
     return new Response(new BufferedInputStream(new ByteArrayInputStream(sb.toString().getBytes())));
   }
 
+  public static Response createServiceUnavailable() {
+    return new Response(new BufferedInputStream(new ByteArrayInputStream(SERVICE_UNAVAILABLE)));
+  }
+
+  /**
+   * Write the pre-serialized 503 straight to a stream.
+   * Used by the accept loop where no Response object is needed
+   */
+  public static void writeServiceUnavailable(OutputStream dest) throws IOException {
+    dest.write(SERVICE_UNAVAILABLE);
+    dest.flush();
+  }
+
   /**
    * Supplying the censoring engine
    */
@@ -49,72 +130,279 @@ public class Response {
     this.censorEngine = engine;
   }
 
+  /**
+   * Read and parse the response header, so that decisions can be made
+   * before anything is forwarded. Called by forward() if not called before
+   */
+  public void readHeader() throws IOException {
+    if (this.headerRead) return;
+    this.headerRead = true;
+    this.buffer = BufferPool.acquire(8192);
+    int len = 0;
+    while (true) {
+      // Keep reading until the blank line shows up or the buffer is full
+      int n;
+      try {
+        while (endOfHeader(this.buffer, len) >= len && len < this.buffer.length
+               && (n = this.dataSource.read(this.buffer, len, this.buffer.length - len)) > 0) {
+          len += n;
+        }
+      } catch (IOException e) {
+        // Nothing will be forwarded, so the buffer goes back right away
+        BufferPool.release(this.buffer);
+        this.buffer = null;
+        throw e;
+      }
+      if (len <= 0) {
+        BufferPool.release(this.buffer);
+        this.buffer = null;
+        return;
+      }
+      parseHeader(len);
+      // Interim responses such as 100 Continue or 103 Early Hints precede the
+      // final one on the same connection, drop them and read on. 101 is final
+      if (!this.headerComplete || this.statusCode / 100 != 1 || this.statusCode == 101) break;
+      int next = this.headerEnd + 4;
+      System.arraycopy(this.buffer, next, this.buffer, 0, len - next);
+      len -= next;
+      this.statusCode = 0;
+      this.headerLines.clear();
+      this.headers.clear();
+    }
+
+    if (this.headerComplete) {
+      int bodyStart = this.headerEnd + 4;
+      this.body = new BodyInputStream(framing(), contentLength(),
+                                      this.buffer, bodyStart, len - bodyStart, this.dataSource);
+    }
+  }
+
+  /**
+   * Parse the status line and fields of the header held in the first len bytes of buffer
+   */
+  private void parseHeader(int len) {
+    this.bufferLength = len;
+    this.headerEnd = endOfHeader(this.buffer, len);
+    this.headerComplete = this.headerEnd < len;
+
+    String header = new String(this.buffer, 0, this.headerEnd, StandardCharsets.ISO_8859_1);
+    int eol = header.indexOf("\r\n");
+    // Status line: <httpVersion> <statusCode> <reason>
+    this.statusLine = eol < 0 ? header : header.substring(0, eol);
+    String[] status = this.statusLine.split("\\s+", 3);
+    try {
+      if (status.length >= 2) this.statusCode = Integer.parseInt(status[1]);
+    } catch (NumberFormatException e) {
+      this.statusCode = 0;
+    }
+    // Header fields, repeated ones are joined with commas
+    for (int start = eol + 2; eol >= 0 && start < header.length(); start = eol + 2) {
+      eol = header.indexOf("\r\n", start);
+      int end = eol < 0 ? header.length() : eol;
+      int colon = header.indexOf(':', start);
+      if (colon < 0 || colon >= end) continue;
+      this.headerLines.add(header.substring(start, end));
+      String name  = header.substring(start, colon).trim();
+      String value = header.substring(colon + 1, end).trim();
+      String prev  = this.headers.get(name);
+      this.headers.put(name, prev == null ? value : prev + ", " + value);
+    }
+  }
+
+  /**
+   * How the end of the body is found, RFC 7230 section 3.3.3
+   */
+  private BodyInputStream.Framing framing() {
+    if (this.bodiless || this.statusCode / 100 == 1
+        || this.statusCode == 204 || this.statusCode == 304) {
+      return BodyInputStream.Framing.NONE;
+    }
+    String te = getHeader("Transfer-Encoding");
+    if (te != null && te.toLowerCase().contains("chunked")) return BodyInputStream.Framing.CHUNKED;
+    if (contentLength() >= 0) return BodyInputStream.Framing.CONTENT_LENGTH;
+    return BodyInputStream.Framing.UNTIL_CLOSE;
+  }
+
+  private long contentLength() {
+    String cl = getHeader("Content-Length");
+    if (cl == null) return -1;
+    try {
+      return Long.parseLong(cl.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return {int} The status code, 0 if the header is missing or malformed
+   */
+  public int getStatusCode() { return this.statusCode; }
+
+  /**
+   * Case insensitive header lookup, null if absent
+   */
+  public String getHeader(String name) { return this.headers.get(name); }
+
+  /**
+   * Whether the connection the response came on can carry another exchange.
+   * Only true after forward(), once the body was read to its framed end
+   */
+  public boolean isReusable() {
+    if (this.body == null || !this.body.isComplete() || this.body.leftover() > 0) return false;
+    // Only 101 gets here, the connection no longer speaks HTTP
+    if (this.statusCode / 100 == 1) return false;
+    String connection = getHeader("Connection");
+    if (connection != null && hasToken(connection, "close")) return false;
+    // HTTP/1.0 origins only keep the connection open when they say so
+    if (this.statusLine.startsWith("HTTP/1.0")) {
+      return connection != null && hasToken(connection, "keep-alive");
+    }
+    return true;
+  }
+
   /**
    * Start forwarding request from the data source initialized to
    * Accept multiple output streams
+   * @return {long} Number of bytes forwarded
    */
-  public void forward(BufferedOutputStream... dests) throws IOException {
-    byte[] b = new byte[8192];
-    int len;
+  public long forward(OutputStream... dests) throws IOException {
+    try {
+      readHeader();
+      if (this.bufferLength <= 0) return 0;
+      if (!this.headerComplete) return forwardRaw(this.buffer, dests);
+      return forwardFramed(dests);
+    } finally {
+      BufferPool.release(this.buffer);
+      this.buffer = null;
+    }
+  }
 
-    // Read header first. This helps to extract out header info,
-    // as well as preventing the censor engine from censoring header
-    if ((len = this.dataSource.read(b)) > 0) {
-      // Iterate forward to find end of header
-      int eoh;
-      for (eoh = 0; eoh < len && (b[eoh] != '\r' || !(new String(b, eoh, 4)).equals("\r\n\r\n")); eoh++);
-      String header  = new String(b, 0, eoh);
-
-      // Only censor if type is text
-      boolean censor = this.censorEngine != null && header.indexOf("Content-Type: text") != -1;
-
-      if (censor) {
-        // Write header bytes
-        writeBytes(b, eoh + 4, dests);
-
-        // Read the rest into a string and write
-        b = this.censorEngine.process(new String(b, eoh + 4, len - eoh - 4)).getBytes();
-        len = b.length;
-      }
+  /**
+   * Header too large to parse, pass everything through until the origin closes
+   */
+  private long forwardRaw(byte[] b, OutputStream[] dests) throws IOException {
+    int len = this.bufferLength;
+    long total = 0;
+    do {
+      // Write to all non-null streams
       writeBytes(b, len, dests);
+      total += len;
+    } while ((len = this.dataSource.read(b, 0, b.length)) > 0);
+    // Flush all streams
+    flushAll(dests);
+    return total;
+  }
 
-      // Forward data
-      if (censor) {
-        // Start reading string instead
-        BufferedReader reader = new BufferedReader(new InputStreamReader(this.dataSource));
-        // Populate writers in an ArrayList
-        ArrayList<BufferedWriter> writers = new ArrayList<BufferedWriter>();
-        for (BufferedOutputStream dest : dests) {
-          if (dest == null) continue;
-          writers.add(new BufferedWriter(new OutputStreamWriter(dest)));
-        }
-        // Write to all
-        String line;
-        while ((line = reader.readLine()) != null) {
-          line = this.censorEngine.process(line);
-          for (BufferedWriter writer : writers) {
-            writer.write(line);
-            writer.newLine();
-          }
+  private long forwardFramed(OutputStream[] dests) throws IOException {
+    long total = 0;
+
+    // Header was read first. This helps to extract out header info,
+    // as well as preventing the censor engine from censoring header
+    String contentType = getHeader("Content-Type");
+
+    // Only censor if type is text
+    boolean censor = this.censorEngine != null
+        && contentType != null && contentType.startsWith("text");
+
+    // Write header bytes
+    byte[] header = serializeHeader(censor);
+    writeBytes(header, header.length, dests);
+    total += header.length;
+
+    // Forward data
+    if (censor) {
+      // Start reading string instead
+      BufferedReader reader = new BufferedReader(new InputStreamReader(this.body));
+      // Populate writers in an ArrayList
+      ArrayList<BufferedWriter> writers = new ArrayList<BufferedWriter>();
+      for (OutputStream dest : dests) {
+        if (dest == null) continue;
+        writers.add(new BufferedWriter(new OutputStreamWriter(dest)));
+      }
+      // Write to all
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = this.censorEngine.process(line);
+        for (BufferedWriter writer : writers) {
+          writer.write(line);
+          writer.newLine();
         }
-        // Flush all
-        for (BufferedWriter writer : writers) writer.flush();
-      } else {
-        while ((len = this.dataSource.read(b)) > 0) {
+        total += line.length() + 1;
+      }
+      // Flush all
+      for (BufferedWriter writer : writers) writer.flush();
+    } else {
+      byte[] b = BufferPool.acquire(8192);
+      try {
+        int len;
+        while ((len = this.body.read(b, 0, b.length)) > 0) {
           // Write to all non-null streams
           writeBytes(b, len, dests);
+          total += len;
         }
-        // Flush all streams
-        flushAll(dests);
+      } finally {
+        BufferPool.release(b);
       }
+      // Flush all streams
+      flushAll(dests);
+    }
+    return total;
+  }
+
+  /**
+   * The header as sent to the client and the cache. Both get the body
+   * de-chunked and delimited by the proxy closing the connection, so
+   * hop-by-hop fields are dropped, and Content-Length too when the
+   * censor may change the body's length
+   */
+  private byte[] serializeHeader(boolean censor) {
+    // Fields named by Connection are hop-by-hop as well
+    String connection = getHeader("Connection");
+    // Censoring changes the length, and a chunked body goes out de-chunked,
+    // so its Content-Length, if any, must go (RFC 7230 section 3.3.3)
+    boolean dropLength = censor || framing() == BodyInputStream.Framing.CHUNKED;
+    StringBuilder sb = new StringBuilder();
+    sb.append(this.statusLine).append("\r\n");
+    for (String line : this.headerLines) {
+      String name = line.substring(0, line.indexOf(':')).trim();
+      if (isHopByHop(name) || (connection != null && hasToken(connection, name))) continue;
+      if (dropLength && name.equalsIgnoreCase("Content-Length")) continue;
+      sb.append(line).append("\r\n");
+    }
+    sb.append("Connection: close\r\n\r\n");
+    return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  static boolean isHopByHop(String name) {
+    for (String h : HOP_BY_HOP) if (h.equalsIgnoreCase(name)) return true;
+    return false;
+  }
+
+  /**
+   * Check a comma separated header value for a token, ignoring case
+   */
+  static boolean hasToken(String value, String token) {
+    for (String part : value.split(",")) {
+      if (part.trim().equalsIgnoreCase(token)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Offset of the blank line ending the header, or len if it isn't in the buffer
+   */
+  private static int endOfHeader(byte[] b, int len) {
+    for (int i = 0; i + 3 < len; i++) {
+      if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n') return i;
     }
+    return len;
   }
 
   /**
    * Private convenient method to write data to all streams
    */
-  private static void writeBytes(byte[] data, int length, BufferedOutputStream[] dests) throws IOException {
-    for (BufferedOutputStream dest : dests) {
+  private static void writeBytes(byte[] data, int length, OutputStream[] dests) throws IOException {
+    for (OutputStream dest : dests) {
       if (dest != null) dest.write(data, 0, length);
     }
   }
@@ -122,8 +410,8 @@ public class Response {
   /**
    * Private convenient method to flush all treams
    */
-  private static void flushAll(BufferedOutputStream[] dests) throws IOException {
-    for (BufferedOutputStream dest : dests) if (dest != null) {
+  private static void flushAll(OutputStream[] dests) throws IOException {
+    for (OutputStream dest : dests) if (dest != null) {
       dest.flush();
     }
   }
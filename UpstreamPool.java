@@ -0,0 +1,115 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*; // For ConcurrentHashMap and ConcurrentLinkedDeque
+import java.util.concurrent.atomic.*; // For the counters
+
+public class UpstreamPool {
+
+  /**
+   * Types
+   */
+  private static class Idle {
+    final Socket socket;
+    final long since;
+
+    Idle(Socket socket, long since) {
+      this.socket = socket;
+      this.since = since;
+    }
+  }
+
+  /**
+   * Properties
+   */
+  private final int maxIdlePerOrigin;
+  private final long idleTimeout; // In milliseconds
+  private ConcurrentHashMap<String, ConcurrentLinkedDeque<Idle>> idle;
+
+  // Counters for reporting
+  private final AtomicLong reused;
+  private final AtomicLong released;
+  private final AtomicLong expired;
+
+  /**
+   * Constructor
+   * @param maxIdlePerOrigin Idle connections kept open per origin
+   * @param idleTimeout Milliseconds an idle connection is trusted to still be open
+   */
+  public UpstreamPool(int maxIdlePerOrigin, long idleTimeout) {
+    this.maxIdlePerOrigin = maxIdlePerOrigin;
+    this.idleTimeout = idleTimeout;
+    this.idle = new ConcurrentHashMap<String, ConcurrentLinkedDeque<Idle>>();
+    this.reused = new AtomicLong();
+    this.released = new AtomicLong();
+    this.expired = new AtomicLong();
+  }
+
+  /**
+   * Take an idle connection to the origin.
+   * @return {Socket} A connected socket, null if none is available
+   */
+  public Socket acquire(String origin) {
+    ConcurrentLinkedDeque<Idle> sockets = this.idle.get(origin);
+    if (sockets == null) return null;
+    long now = System.currentTimeMillis();
+    Idle entry;
+    // Most recently used first, those are the least likely to have been dropped
+    while ((entry = sockets.pollFirst()) != null) {
+      if (!entry.socket.isClosed() && now - entry.since < this.idleTimeout) {
+        this.reused.incrementAndGet();
+        return entry.socket;
+      }
+      this.expired.incrementAndGet();
+      close(entry.socket);
+    }
+    return null;
+  }
+
+  /**
+   * Hand back a connection whose last message was read to its end
+   */
+  public void release(String origin, Socket socket) {
+    ConcurrentLinkedDeque<Idle> sockets = this.idle.get(origin);
+    if (sockets == null) {
+      ConcurrentLinkedDeque<Idle> fresh = new ConcurrentLinkedDeque<Idle>();
+      sockets = this.idle.putIfAbsent(origin, fresh);
+      if (sockets == null) sockets = fresh;
+    }
+    // Drop the oldest connections past the limit
+    sockets.offerFirst(new Idle(socket, System.currentTimeMillis()));
+    this.released.incrementAndGet();
+    Idle oldest;
+    while (sockets.size() > this.maxIdlePerOrigin && (oldest = sockets.pollLast()) != null) {
+      close(oldest.socket);
+    }
+  }
+
+  /**
+   * Close every idle connection
+   */
+  public void closeAll() {
+    for (ConcurrentLinkedDeque<Idle> sockets : this.idle.values()) {
+      Idle entry;
+      while ((entry = sockets.pollFirst()) != null) close(entry.socket);
+    }
+  }
+
+  private static void close(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Already unusable, nothing else to do
+    }
+  }
+
+  /**
+   * Human readable summary of the counters
+   */
+  public String getStats() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("released=").append(this.released.get());
+    sb.append(" reused=").append(this.reused.get());
+    sb.append(" expired=").append(this.expired.get());
+    return sb.toString();
+  }
+}
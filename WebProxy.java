@@ -3,15 +3,44 @@ import java.net.*;
 
 public class WebProxy implements Runnable {
 
+  /**
+   * Constants
+   * Defaults for the admission limits, each can be overridden with
+   * the system property of the same name, e.g. -Dproxy.maxExchanges=512
+   */
+  private static final int DEFAULT_MAX_EXCHANGES = 256;
+  private static final int DEFAULT_MAX_PENDING = 512;
+  private static final int DEFAULT_MAX_CONNECTS_PER_ORIGIN = 32;
+  private static final int DEFAULT_ACCEPTORS = 1;
+  private static final int DEFAULT_MAX_IDLE_PER_ORIGIN = 8;
+  private static final long DEFAULT_IDLE_TIMEOUT = 15000; // In milliseconds
+  private static final int DEFAULT_CONNECT_TIMEOUT = 5000; // In milliseconds
+  private static final int DEFAULT_READ_TIMEOUT = 30000; // In milliseconds
+  private static final int DEFAULT_CLIENT_READ_TIMEOUT = 30000; // In milliseconds
+  private static final int DEFAULT_FAILURE_THRESHOLD = 2;
+  private static final long DEFAULT_FAILURE_TTL = 5000; // In milliseconds
+
   /**
    * Properties
    */
   private int port;
-  private boolean stopped;
-  private ServerSocket welcomeSocket;
+  private volatile boolean stopped;
+  private ServerSocket[] welcomeSockets;
+  private Acceptor[] acceptors;
   private ProxyCache cache;
   private CensorEngine censorEngine;
 
+  private int maxExchanges;
+  private int maxPending;
+  private int acceptorCount;
+  private AdmissionControl admission;
+  private UpstreamPool upstreams;
+  private OriginHealth health;
+  private int connectTimeout;
+  private int readTimeout;
+  private int clientReadTimeout;
+  private AccessLog accessLog;
+
   /**
    * Constructor
    * @param port The port to listen for connections
@@ -19,8 +48,25 @@ public class WebProxy implements Runnable {
   public WebProxy(int port) {
     this.port = port;
     this.stopped = true;
-    this.cache = new ProxyCache();
     this.censorEngine = CensorEngine.seed("censor.txt");
+    this.maxExchanges = Integer.getInteger("proxy.maxExchanges", DEFAULT_MAX_EXCHANGES);
+    this.maxPending = Integer.getInteger("proxy.maxPending", DEFAULT_MAX_PENDING);
+    this.acceptorCount = Math.max(1, Integer.getInteger("proxy.acceptors", DEFAULT_ACCEPTORS));
+    this.admission = new AdmissionControl(
+        Integer.getInteger("proxy.maxConnectsPerOrigin", DEFAULT_MAX_CONNECTS_PER_ORIGIN));
+    this.upstreams = new UpstreamPool(
+        Integer.getInteger("proxy.upstream.maxIdlePerOrigin", DEFAULT_MAX_IDLE_PER_ORIGIN),
+        Long.getLong("proxy.upstream.idleTimeout", DEFAULT_IDLE_TIMEOUT));
+    this.connectTimeout = Integer.getInteger("proxy.upstream.connectTimeout", DEFAULT_CONNECT_TIMEOUT);
+    this.readTimeout = Integer.getInteger("proxy.upstream.readTimeout", DEFAULT_READ_TIMEOUT);
+    this.clientReadTimeout = Integer.getInteger("proxy.clientReadTimeout", DEFAULT_CLIENT_READ_TIMEOUT);
+    this.health = new OriginHealth(
+        Integer.getInteger("proxy.upstream.failureThreshold", DEFAULT_FAILURE_THRESHOLD),
+        Long.getLong("proxy.upstream.failureTtl", DEFAULT_FAILURE_TTL));
+    this.cache = new ProxyCache(DefaultCachePolicy.fromSystemProperties(),
+                                this.health, this.connectTimeout);
+    // proxy.accessLog names the file, empty turns the log off
+    this.accessLog = AccessLog.fromSystemProperties();
   }
 
   /**
@@ -29,40 +75,92 @@ public class WebProxy implements Runnable {
   public void run() {
     try {
       // Start listening on the port specified
-      this.welcomeSocket = new ServerSocket(this.port);
+      this.welcomeSockets = openWelcomeSockets();
     } catch (IOException e) {
       e.printStackTrace();
+      return;
     }
+    // Every acceptor gets its own worker group, the limits are split between them
+    int n = this.acceptorCount;
+    this.acceptors = new Acceptor[n];
+    for (int i = 0; i < n; i++) {
+      ServerSocket socket = this.welcomeSockets[Math.min(i, this.welcomeSockets.length - 1)];
+      this.acceptors[i] = new Acceptor(i, this, socket,
+                                       Math.max(1, this.maxExchanges / n),
+                                       Math.max(1, this.maxPending / n),
+                                       this.cache, this.censorEngine,
+                                       this.admission, this.upstreams,
+                                       this.health, this.connectTimeout,
+                                       this.readTimeout, this.clientReadTimeout,
+                                       this.accessLog);
+    }
+    this.accessLog.start();
     // Mark server as running
     this.stopped = false;
-    // Keep listening for client connections
-    // Spawn new proxy thread upon handshake
-    while (!this.isStopped()) {
-      Socket clientSocket = null;
-      try {
-        clientSocket = welcomeSocket.accept();
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-      (new Thread(new ProxyRunnable(clientSocket,
-                                    this.cache,
-                                    this.censorEngine
-                                    ))).start();
+    // The calling thread doubles as the first acceptor
+    for (int i = 1; i < n; i++) {
+      (new Thread(this.acceptors[i], "acceptor-" + i)).start();
+    }
+    this.acceptors[0].run();
+  }
+
+  /**
+   * With SO_REUSEPORT every acceptor binds its own listening socket and
+   * the kernel spreads incoming connections across them. Otherwise all
+   * acceptors share a single socket and take turns in accept()
+   */
+  private ServerSocket[] openWelcomeSockets() throws IOException {
+    ServerSocket first = new ServerSocket();
+    boolean reusePort = this.acceptorCount > 1
+        && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    if (!reusePort) {
+      first.bind(new InetSocketAddress(this.port));
+      return new ServerSocket[] { first };
     }
+    ServerSocket[] sockets = new ServerSocket[this.acceptorCount];
+    sockets[0] = first;
+    for (int i = 1; i < sockets.length; i++) sockets[i] = new ServerSocket();
+    for (ServerSocket socket : sockets) {
+      socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      socket.bind(new InetSocketAddress(this.port));
+    }
+    return sockets;
   }
 
+  /**
+   * Admission counters, for reporting
+   */
+  public AdmissionControl getAdmission() { return this.admission; }
+
   public boolean isStopped() { return this.stopped; }
 
   public synchronized void stop() {
     this.stopped = true;
-    // Try to close the server socket if it is initialized
-    if (this.welcomeSocket != null) {
-      try {
-        this.welcomeSocket.close();
-      } catch (IOException e) {
-        e.printStackTrace();
+    // Try to close the server sockets if they are initialized
+    if (this.welcomeSockets != null) {
+      for (ServerSocket socket : this.welcomeSockets) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    if (this.acceptors != null) {
+      for (Acceptor acceptor : this.acceptors) {
+        acceptor.shutdown();
+        System.out.println("Acceptor: " + acceptor.getStats());
       }
     }
+    this.upstreams.closeAll();
+    this.accessLog.close();
+    System.out.println("Admission: " + this.admission.getStats());
+    System.out.println("Upstream: " + this.upstreams.getStats());
+    System.out.println("Origins: " + this.health.getStats());
+    System.out.println("Access log: " + this.accessLog.getStats());
+    System.out.println("Cache: " + this.cache.getStats());
+    System.out.println("Buffers: " + BufferPool.get().getStats());
+    BufferPool.get().reportLeaks();
   }
 
   /**
@@ -78,7 +176,11 @@ public class WebProxy implements Runnable {
     int port;
     try {
       port = Integer.parseInt(args[0]);
-      WebProxy proxy = new WebProxy(port);
+      final WebProxy proxy = new WebProxy(port);
+      // Report counters when the proxy is interrupted
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() { proxy.stop(); }
+      });
       (new Thread(proxy)).start();
     } catch (NumberFormatException e) {
       System.out.println("Usage: java WebProxy <port>");